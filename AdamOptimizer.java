@@ -0,0 +1,57 @@
+import java.util.ArrayList;
+
+/**
+ * Adam: RMSProp on a momentum averaged gradient, with both moments bias corrected for their zero start.
+ * m = beta1 * m + (1 - beta1) * g, v = beta2 * v + (1 - beta2) * g^2,
+ * parameters += learningRate * (m / (1 - beta1^t)) / (sqrt(v / (1 - beta2^t)) + epsilon).
+ * Steps are close to learningRate in size whatever the scale of the TD errors, so learning rates around 1e-3 or below suit it.
+ */
+public class AdamOptimizer extends Optimizer{
+
+    private float beta1;
+    private float beta2;
+    private float epsilon;
+
+    private float[][] firstMoment;
+    private float[][] secondMoment;
+
+    public AdamOptimizer(float beta1, float beta2, float epsilon){
+        super();
+
+        if(beta1 < 0 || beta1 >= 1 || beta2 < 0 || beta2 >= 1 || epsilon <= 0){
+            throw new IllegalArgumentException("beta1 and beta2 must be in [0, 1) and epsilon positive");
+        }
+
+        this.beta1 = beta1;
+        this.beta2 = beta2;
+        this.epsilon = epsilon;
+    }
+
+    @Override
+    protected void allocateState(ArrayList<Layer> network){
+        this.firstMoment = Optimizer.allocateMoments(network);
+        this.secondMoment = Optimizer.allocateMoments(network);
+    }
+
+    @Override
+    protected void update(int index, float[] params, float[] grad, float learningRate, float gradScale){
+        float[] m = this.firstMoment[index];
+        float[] v = this.secondMoment[index];
+        float beta1 = this.beta1;
+        float beta2 = this.beta2;
+
+        //Bias corrections, folded into the step size and epsilon
+        float correction1 = 1 - (float)Math.pow(beta1, this.steps);
+        float correction2 = (float)Math.sqrt(1 - Math.pow(beta2, this.steps));
+        float stepSize = learningRate / correction1;
+        float epsilon = this.epsilon * correction2;
+
+        for(int i = 0; i < params.length; i++){
+            float g = gradScale * grad[i];
+
+            m[i] = beta1 * m[i] + (1 - beta1) * g;
+            v[i] = beta2 * v[i] + (1 - beta2) * g * g;
+            params[i] += stepSize * m[i] * correction2 / ((float)Math.sqrt(v[i]) + epsilon);
+        }
+    }
+}
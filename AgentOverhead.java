@@ -0,0 +1,213 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Accounts the time GCAgent spends in each phase of a step and compares it against a budget, a fraction of the process CPU time.
+ * The fraction is measured over a rolling window: both sums are halved whenever the window has seen WINDOW_CPU_NANOS of process CPU time.
+ *
+ * Agent time is CPU time, like the process time it is divided by: the phases are timed with now(), the invoking thread's CPU time
+ * plus what the ParallelLoop workers spent on its loops, so being descheduled does not count. Work on the agent's other threads,
+ * the background quantization and evolution strategies, is charged through chargeBackground(). Where the JVM has no thread CPU time
+ * the phases fall back to wall time.
+ */
+public class AgentOverhead{
+
+    public static final int OBSERVATION = 0;
+    public static final int INFERENCE = 1;
+    public static final int LEARNING = 2;
+    public static final int GC_ACTION = 3;
+
+    //Work of the agent's own threads outside invoke(), see chargeBackground()
+    public static final int BACKGROUND = 4;
+
+    private static final int NUM_PHASES = 5;
+
+    //Half life of the rolling window, in process CPU time
+    private static final long WINDOW_CPU_NANOS = 10L * 1000 * 1000 * 1000;
+
+    //Do not throttle until the window has seen this much CPU time, so start-up does not look like overhead
+    private static final long MIN_CPU_NANOS = 100L * 1000 * 1000;
+
+    private AtomicLongArray phaseNanos;
+
+    private AtomicLong skippedLearningSteps;
+    private AtomicLong skippedInvocations;
+
+    //Maximum fraction of process CPU time the agent may use, 0 for no limit
+    private volatile float budget;
+
+    private com.sun.management.OperatingSystemMXBean os;
+    private int processors;
+
+    private ThreadMXBean threads;
+    private boolean threadCpuTime;
+
+    //Charged by other threads, added to the window by the next budget check
+    private AtomicLong pendingBackgroundNanos;
+
+    private long lastCpuNanos;
+    private long lastWallNanos;
+    private double windowAgentNanos;
+    private double windowCpuNanos;
+
+    private volatile float overheadFraction;
+
+    public AgentOverhead(){
+        this.phaseNanos = new AtomicLongArray(AgentOverhead.NUM_PHASES);
+        this.skippedLearningSteps = new AtomicLong();
+        this.skippedInvocations = new AtomicLong();
+        this.pendingBackgroundNanos = new AtomicLong();
+
+        this.budget = 0;
+
+        //Process CPU time is only available through the com.sun extension; otherwise assume every core is busy
+        java.lang.management.OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        if(bean instanceof com.sun.management.OperatingSystemMXBean){
+            this.os = (com.sun.management.OperatingSystemMXBean)bean;
+        }
+        this.processors = Runtime.getRuntime().availableProcessors();
+
+        this.threads = ManagementFactory.getThreadMXBean();
+        this.threadCpuTime = this.threads.isCurrentThreadCpuTimeSupported();
+
+        this.lastWallNanos = System.nanoTime();
+        this.lastCpuNanos = this.processCpuNanos();
+    }
+
+    public void setBudget(float budget){
+        if(budget < 0 || budget >= 1){
+            throw new IllegalArgumentException("budget must be in [0, 1), got " + budget);
+        }
+
+        this.budget = budget;
+    }
+
+    public float getBudget(){
+        return this.budget;
+    }
+
+    /**
+     * The clock of the phases: CPU time of the calling thread plus the CPU time the ParallelLoop workers spent on its loops.
+     */
+    public long now(){
+        if(!this.threadCpuTime){
+            return System.nanoTime();
+        }
+
+        return this.threads.getCurrentThreadCpuTime() + ParallelLoop.getWorkerCpuNanos();
+    }
+
+    /**
+     * Adds the time since startNanos (a now() value) to the given phase and returns now(), so consecutive phases can be chained.
+     */
+    public long record(int phase, long startNanos){
+        long now = this.now();
+        long elapsed = now - startNanos;
+
+        this.phaseNanos.addAndGet(phase, elapsed);
+
+        //The GC action is what the agent is for, and its cost shows up in the reward; the budget covers the agent's own work
+        if(phase != AgentOverhead.GC_ACTION){
+            this.windowAgentNanos += elapsed;
+        }
+
+        return now;
+    }
+
+    /**
+     * Measures the rolling overhead, reading the process CPU time once. Call it once per invocation, before isOverBudget() and
+     * shouldSkipInvocation(), which answer from this measurement. Does nothing without a budget.
+     */
+    public void checkBudget(){
+        if(this.budget == 0){
+            return;
+        }
+
+        this.updateWindow();
+    }
+
+    /**
+     * True if the agent should skip learning steps until it is back under budget, as of the last checkBudget().
+     */
+    public boolean isOverBudget(){
+        float budget = this.budget;
+
+        return budget > 0 && this.windowCpuNanos >= AgentOverhead.MIN_CPU_NANOS && this.overheadFraction > budget;
+    }
+
+    /**
+     * True if the agent is so far over budget (twice) that even observation and inference should be skipped, as of the last checkBudget().
+     */
+    public boolean shouldSkipInvocation(){
+        return this.isOverBudget() && this.overheadFraction > 2 * this.budget;
+    }
+
+    /**
+     * Charges CPU time the agent spent on another thread, measured there with now(), to the BACKGROUND phase and the budget.
+     */
+    public void chargeBackground(long cpuNanos){
+        this.phaseNanos.addAndGet(AgentOverhead.BACKGROUND, cpuNanos);
+        this.pendingBackgroundNanos.addAndGet(cpuNanos);
+    }
+
+    void recordSkippedLearningStep(){
+        this.skippedLearningSteps.incrementAndGet();
+    }
+
+    void recordSkippedInvocation(){
+        this.skippedInvocations.incrementAndGet();
+    }
+
+    public long getPhaseNanos(int phase){
+        return this.phaseNanos.get(phase);
+    }
+
+    public long getSkippedLearningSteps(){
+        return this.skippedLearningSteps.get();
+    }
+
+    public long getSkippedInvocations(){
+        return this.skippedInvocations.get();
+    }
+
+    /**
+     * Agent time over process CPU time in the rolling window, as of the last checkBudget().
+     */
+    public float getOverheadFraction(){
+        return this.overheadFraction;
+    }
+
+    private void updateWindow(){
+        long cpu = this.processCpuNanos();
+        this.windowCpuNanos += Math.max(cpu - this.lastCpuNanos, 0);
+        this.lastCpuNanos = cpu;
+
+        this.windowAgentNanos += this.pendingBackgroundNanos.getAndSet(0);
+
+        if(this.windowCpuNanos > AgentOverhead.WINDOW_CPU_NANOS){
+            this.windowCpuNanos /= 2;
+            this.windowAgentNanos /= 2;
+        }
+
+        this.overheadFraction = this.windowCpuNanos > 0 ? (float)(this.windowAgentNanos / this.windowCpuNanos) : 0f;
+    }
+
+    private long processCpuNanos(){
+        if(this.os != null){
+            long cpu = this.os.getProcessCpuTime();
+
+            if(cpu >= 0){
+                return cpu;
+            }
+        }
+
+        //Fallback: wall time on all processors
+        long now = System.nanoTime();
+        long cpu = this.lastCpuNanos + (now - this.lastWallNanos) * this.processors;
+        this.lastWallNanos = now;
+
+        return cpu;
+    }
+}
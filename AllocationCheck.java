@@ -0,0 +1,88 @@
+import java.lang.management.ManagementFactory;
+
+/**
+ * Checks that the steady state GCAgent.invoke() allocates nothing, run with java AllocationCheck. Exits with status 1 if any
+ * configuration allocates on the invoking thread, so it can gate a build.
+ *
+ * Each configuration is measured over several rounds and the least allocating round counts: while the JIT is still settling, a
+ * deoptimization rematerializes objects that compiled code had scalar replaced, which shows up as a few stray bytes in one round,
+ * whereas an allocation on the hot path shows up in every round.
+ */
+public class AllocationCheck{
+
+    private static final int WARMUP_INVOCATIONS = 5000;
+    private static final int MEASURED_INVOCATIONS = 2000;
+    private static final int ROUNDS = 5;
+
+    private static boolean failed;
+
+    public static void main(String[] args){
+        System.out.println("Kernels: " + Kernels.get().getName());
+
+        AllocationCheck.check("Dense update network", AllocationCheck.createAgent());
+
+        GCAgent recurrent = AllocationCheck.createAgent();
+        recurrent.enableRecurrentEncoder(8);
+        AllocationCheck.check("Recurrent encoder", recurrent);
+
+        GCAgent replay = AllocationCheck.createAgent();
+        replay.enableReplay(1000, 16, 1f);
+        AllocationCheck.check("Experience replay", replay);
+
+        GCAgent frozen = AllocationCheck.createAgent();
+        frozen.freeze();
+        AllocationCheck.check("Frozen", frozen);
+
+        if(AllocationCheck.failed){
+            System.err.println("Allocation check failed");
+            System.exit(1);
+        }
+
+        System.out.println("Allocation check passed");
+    }
+
+    private static GCAgent createAgent(){
+        //Small networks keep the check quick, and an update interval of 100000 keeps the measured window clear of the update network swap
+        return new GCAgent(16, 16, 16, 16, 0.01f, 0.001f, 0.001f, 0.95f, 0.9999f, 100000);
+    }
+
+    private static void check(String name, GCAgent agent){
+        float bytes = AllocationCheck.allocatedBytesPerInvoke(agent, AllocationCheck.WARMUP_INVOCATIONS, AllocationCheck.MEASURED_INVOCATIONS);
+        for(int round = 1; round < AllocationCheck.ROUNDS && bytes > 0; round++){
+            bytes = Math.min(bytes, AllocationCheck.allocatedBytesPerInvoke(agent, 0, AllocationCheck.MEASURED_INVOCATIONS));
+        }
+        agent.shutdown();
+
+        String report = name + ": " + bytes + " bytes allocated per invoke";
+
+        if(bytes > 0){
+            System.err.println(report);
+            AllocationCheck.failed = true;
+        } else {
+            System.out.println(report);
+        }
+    }
+
+    /**
+     * Measures the bytes allocated by the calling thread per steady state GCAgent.invoke() call.
+     * The agent's own garbage should be zero, so anything else points at an allocation on the hot path.
+     */
+    public static float allocatedBytesPerInvoke(GCAgent agent, int warmupInvocations, int measuredInvocations){
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        for(int i = 0; i < warmupInvocations; i++){
+            agent.invoke();
+        }
+
+        long startBytes = threads.getThreadAllocatedBytes(threadId);
+
+        for(int i = 0; i < measuredInvocations; i++){
+            agent.invoke();
+        }
+
+        long endBytes = threads.getThreadAllocatedBytes(threadId);
+
+        return (endBytes - startBytes) / ((float)measuredInvocations);
+    }
+}
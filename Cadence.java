@@ -0,0 +1,108 @@
+/**
+ * Set of waits the agent can choose between before its next decision, measured either in wall-clock milliseconds or in bytes
+ * allocated by the application. Each policy action is a (GC or not, wait index) pair, so the action space has 2 * size() entries.
+ */
+public class Cadence{
+
+    private long[] intervals;
+
+    private boolean allocatedBytes;
+
+    //Duration that discountFactor applies to, so decisions covering more time are discounted more
+    private long referenceNanos;
+
+    private Cadence(long[] intervals, boolean allocatedBytes, long referenceNanos){
+        if(intervals.length == 0){
+            throw new IllegalArgumentException("At least one interval is required.");
+        }
+
+        for(int i = 0; i < intervals.length; i++){
+            if(intervals[i] < 0){
+                throw new IllegalArgumentException("Intervals must not be negative, got " + intervals[i]);
+            }
+        }
+
+        this.intervals = intervals.clone();
+        this.allocatedBytes = allocatedBytes;
+        this.referenceNanos = referenceNanos;
+    }
+
+    /**
+     * The original behaviour: the agent decides every time it is invoked and discounts once per decision.
+     */
+    public static Cadence none(){
+        return new Cadence(new long[]{0}, false, 0);
+    }
+
+    /**
+     * Waits of the given number of milliseconds. The discount factor applies per shortest non-zero wait (at least 1ms).
+     */
+    public static Cadence millis(long... waits){
+        long shortest = Long.MAX_VALUE;
+        for(int i = 0; i < waits.length; i++){
+            if(waits[i] > 0){
+                shortest = Math.min(shortest, waits[i]);
+            }
+        }
+
+        if(shortest == Long.MAX_VALUE){
+            shortest = 1;
+        }
+
+        return new Cadence(waits, false, shortest * 1000000L);
+    }
+
+    /**
+     * Waits until the application has allocated the given number of bytes. The discount factor applies per referenceMillis of wall-clock time covered.
+     */
+    public static Cadence allocatedBytes(long referenceMillis, long... waits){
+        if(referenceMillis <= 0){
+            throw new IllegalArgumentException("referenceMillis must be positive, got " + referenceMillis);
+        }
+
+        return new Cadence(waits, true, referenceMillis * 1000000L);
+    }
+
+    public int size(){
+        return this.intervals.length;
+    }
+
+    public int getNumActions(){
+        return 2 * this.intervals.length;
+    }
+
+    public long getInterval(int index){
+        return this.intervals[index];
+    }
+
+    public boolean isAllocatedBytes(){
+        return this.allocatedBytes;
+    }
+
+    /**
+     * True unless this is Cadence.none(), i.e. decisions cover a variable amount of time.
+     */
+    public boolean isEnabled(){
+        return this.referenceNanos > 0;
+    }
+
+    public long getReferenceNanos(){
+        return this.referenceNanos;
+    }
+
+    public static boolean isGCAction(int action){
+        return (action & 1) == 1;
+    }
+
+    public static int getIntervalIndex(int action){
+        return action >> 1;
+    }
+
+    long[] getIntervals(){
+        return this.intervals;
+    }
+
+    static Cadence create(long[] intervals, boolean allocatedBytes, long referenceNanos){
+        return new Cadence(intervals, allocatedBytes, referenceNanos);
+    }
+}
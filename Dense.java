@@ -0,0 +1,145 @@
+/**
+ * Fully connected layer: outputVector = activation(weight . inputVector + bias), with a numUnits x inputSize weight (tensor 0) and
+ * a numUnits x 1 bias (tensor 1). The forward pass stores the activation's derivative per unit, which is all the backward pass
+ * needs from it. DenseTanh and DenseLinear are the tanh and identity flavours the agent builds its networks from.
+ */
+public class Dense extends Layer{
+
+    private Activation activation;
+
+    //Derivative of the activation at each unit's sum, written by forwardPass()
+    private float[] derivativeVector;
+
+    //dObjective/dSum for each unit, shared by the weight gradient and dObjectivedX
+    private float[] deltaVector;
+
+    //Activation derivatives of the last forwardBatch() and the matching dObjective/dSum
+    private float[] batchDerivative;
+    private float[] batchDelta;
+
+    //Row (unit) and column (input) partitioned kernels, see ParallelLoop
+    private ParallelLoop forwardLoop;
+    private ParallelLoop weightGradientLoop;
+    private ParallelLoop inputGradientLoop;
+    private ParallelLoop applyLoop;
+    private float applyScalar;
+
+    public Dense(int numUnits, int inputSize, Activation activation){
+        super();
+
+        this.activation = activation;
+
+        this.inputVector = new float[inputSize];
+        this.outputVector = new float[numUnits];
+
+        this.dObjectivedX = new float[inputSize];
+        this.dObjectivedY = new float[numUnits];
+
+        this.derivativeVector = new float[numUnits];
+        this.deltaVector = new float[numUnits];
+
+        //initialize weight and bias arrays (and their gradients)
+        this.allocateParameters(numUnits, inputSize, numUnits, 1);
+
+        this.populateParams(-0.001f, 0.001f);
+
+        this.forwardLoop = new ParallelLoop(this::forwardRows);
+        this.weightGradientLoop = new ParallelLoop((start, end) -> this.denseWeightGradient(start, end, this.deltaVector));
+        this.inputGradientLoop = new ParallelLoop((start, end) -> this.denseInputGradient(start, end, this.deltaVector));
+        this.applyLoop = new ParallelLoop((start, end) -> this.denseInputGradientAndApply(start, end, this.deltaVector, this.applyScalar));
+    }
+
+    public Activation getActivation(){
+        return this.activation;
+    }
+
+    /**
+     * Switches the activation, e.g. to FAST_TANH to trade a little accuracy for speed. Takes effect with the next forward pass.
+     */
+    public void setActivation(Activation activation){
+        this.activation = activation;
+    }
+
+    @Override
+    public void forwardPass(){
+        this.forwardLoop.run(this.outputVector.length, this.inputVector.length);
+    }
+
+    private void forwardRows(int start, int end){
+        this.denseAffine(start, end, this.outputVector);
+
+        this.activation.apply(this.outputVector, this.outputVector, this.derivativeVector, start, end);
+    }
+
+    @Override
+    public void backwardPass(){
+        float[] grad = this.getGradient();
+        int biasOffset = this.tensorOffsets[1];
+
+        for(int r = 0; r < this.deltaVector.length; r++){
+            this.deltaVector[r] = this.derivativeVector[r] * this.dObjectivedY[r];
+
+            grad[biasOffset + r] = this.deltaVector[r];
+        }
+
+        this.weightGradientLoop.run(this.outputVector.length, this.inputVector.length);
+        this.inputGradientLoop.run(this.inputVector.length, this.outputVector.length);
+    }
+
+    @Override
+    public void backwardAndApply(float scalar){
+        float[] params = this.parameters;
+        int biasOffset = this.tensorOffsets[1];
+
+        for(int r = 0; r < this.deltaVector.length; r++){
+            this.deltaVector[r] = this.derivativeVector[r] * this.dObjectivedY[r];
+        }
+
+        this.applyScalar = scalar;
+        this.applyLoop.run(this.inputVector.length, this.outputVector.length);
+
+        for(int r = 0; r < this.deltaVector.length; r++){
+            params[biasOffset + r] += scalar * this.deltaVector[r];
+        }
+    }
+
+    @Override
+    public float[] forwardBatch(float[] input, int batchSize){
+        int size = batchSize * this.outputVector.length;
+
+        this.batchInput = input;
+        this.batchSize = batchSize;
+        this.batchOutput = Layer.ensureCapacity(this.batchOutput, size);
+        this.batchDerivative = Layer.ensureCapacity(this.batchDerivative, size);
+
+        this.denseForwardBatch(input, batchSize, this.batchOutput);
+
+        this.activation.apply(this.batchOutput, this.batchOutput, this.batchDerivative, 0, size);
+
+        return this.batchOutput;
+    }
+
+    @Override
+    public float[] backwardBatch(float[] dObjdY, int batchSize){
+        int size = batchSize * this.outputVector.length;
+
+        this.batchDelta = Layer.ensureCapacity(this.batchDelta, size);
+        this.batchDObjectivedX = Layer.ensureCapacity(this.batchDObjectivedX, batchSize * this.inputVector.length);
+
+        for(int i = 0; i < size; i++){
+            this.batchDelta[i] = this.batchDerivative[i] * dObjdY[i];
+        }
+
+        this.denseBackwardBatch(this.batchDelta, batchSize, this.batchDObjectivedX);
+
+        return this.batchDObjectivedX;
+    }
+
+    @Override
+    public Layer duplicate(){
+        Dense copy = new Dense(this.outputVector.length, this.inputVector.length, this.activation);
+        copy.copyParametersFrom(this);
+
+        return copy;
+    }
+}
@@ -0,0 +1,283 @@
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Offline evolution strategies search for the agent's update network.
+ *
+ * Each generation samples populationPairs noise vectors and evaluates the update network at base + sigma * noise and base - sigma * noise
+ * (antithetic sampling) in parallel on a dedicated fork-join pool. A candidate is scored by replaying a recorded Trace through it and the
+ * agent's (fixed) policy network: the fitness is the importance weighted mean reward of the recorded actions, so encoders that make the
+ * policy prefer the actions that were followed by high rewards score higher. The fitness differences are combined into a gradient estimate
+ * and the base parameters take one step along it.
+ */
+public class EvolutionStrategies{
+
+    //Trace steps per batched policy evaluation
+    private static final int BATCH_SIZE = 256;
+
+    private int populationPairs;
+
+    private float sigma;
+
+    private float learningRate;
+
+    private ForkJoinPool pool;
+
+    private Random random;
+
+    /**
+     * The noise is drawn from a Random seeded with seed, so a search over the same trace can be repeated.
+     */
+    public EvolutionStrategies(int populationPairs, float sigma, float learningRate, int parallelism, long seed){
+        if(populationPairs <= 0 || sigma <= 0 || parallelism <= 0){
+            throw new IllegalArgumentException("populationPairs, sigma and parallelism must be positive");
+        }
+
+        this.populationPairs = populationPairs;
+        this.sigma = sigma;
+        this.learningRate = learningRate;
+        this.pool = new ForkJoinPool(parallelism);
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Runs the given number of generations on a copy of the agent's update network and installs the result in the agent.
+     * The agent may keep running meanwhile through maybeInvoke() or its background thread; the networks are copied and the result
+     * installed between its steps. Returns the fitness of the final parameters on the trace. The CPU time of the search, on the calling
+     * thread and the pool, is charged to the agent's overhead budget.
+     */
+    public float train(GCAgent agent, Trace trace, int generations){
+        if(agent.hasRecurrentEncoder()){
+            throw new IllegalStateException("The recurrent encoder is trained by gradient, not by evolution strategies.");
+        }
+
+        if(agent.isFrozen()){
+            throw new IllegalStateException("A frozen agent no longer accepts new update networks.");
+        }
+
+        long start = agent.getOverhead().now();
+
+        ArrayList<ArrayList<Layer>> networks = agent.duplicateNetworksExclusive();
+        ArrayList<Layer> updateNetwork = networks.get(0);
+        ArrayList<Layer> policyNetwork = networks.get(1);
+
+        float[] base = new float[GCAgent.countParams(updateNetwork)];
+        GCAgent.copyParams(updateNetwork, base);
+
+        float[] gradient = new float[base.length];
+        float[][] noise = new float[this.populationPairs][base.length];
+        float[] positiveFitness = new float[this.populationPairs];
+        float[] negativeFitness = new float[this.populationPairs];
+
+        for(int g = 0; g < generations; g++){
+            for(int i = 0; i < this.populationPairs; i++){
+                for(int j = 0; j < base.length; j++){
+                    noise[i][j] = (float)this.random.nextGaussian();
+                }
+            }
+
+            this.pool.invoke(new EvaluatePopulation(agent, trace, updateNetwork, policyNetwork, base, noise, positiveFitness, negativeFitness, 0, this.populationPairs));
+
+            //Normalize the fitness differences by their spread, so the step size does not depend on the reward scale
+            float meanDiff = 0;
+            for(int i = 0; i < this.populationPairs; i++){
+                meanDiff += positiveFitness[i] - negativeFitness[i];
+            }
+            meanDiff /= this.populationPairs;
+
+            float variance = 0;
+            for(int i = 0; i < this.populationPairs; i++){
+                float d = (positiveFitness[i] - negativeFitness[i]) - meanDiff;
+                variance += d * d;
+            }
+            float std = (float)Math.sqrt(variance / this.populationPairs) + 1e-8f;
+
+            for(int j = 0; j < gradient.length; j++){
+                gradient[j] = 0;
+            }
+
+            for(int i = 0; i < this.populationPairs; i++){
+                float weight = (positiveFitness[i] - negativeFitness[i]) / std;
+
+                for(int j = 0; j < gradient.length; j++){
+                    gradient[j] += weight * noise[i][j];
+                }
+            }
+
+            float scale = this.learningRate / (2 * this.populationPairs * this.sigma);
+            for(int j = 0; j < base.length; j++){
+                base[j] += scale * gradient[j];
+            }
+        }
+
+        GCAgent.setParameters(updateNetwork, base);
+        agent.installUpdateParametersExclusive(base);
+
+        float fitness = EvolutionStrategies.evaluate(agent, trace, updateNetwork, policyNetwork);
+        agent.getOverhead().chargeBackground(agent.getOverhead().now() - start);
+
+        return fitness;
+    }
+
+    public void close(){
+        this.pool.shutdown();
+    }
+
+    /**
+     * Importance weighted mean reward of the trace when its observations are encoded by updateNetwork and fed to policyNetwork.
+     */
+    static float evaluate(GCAgent agent, Trace trace, ArrayList<Layer> updateNetwork, ArrayList<Layer> policyNetwork){
+        int stateSize = agent.getStateSize();
+        int numActions = agent.getNumActions();
+        int observationSize = trace.getObservationSize();
+
+        float[] observation = new float[observationSize];
+        float[] state = new float[stateSize];
+        float[] input = new float[stateSize + numActions + observationSize];
+        float[] probs = new float[numActions];
+        float[] logits = new float[numActions];
+
+        //The update network is recurrent, so states are computed one step at a time, but the policy sees a chunk of them as one batch
+        float[] states = new float[EvolutionStrategies.BATCH_SIZE * stateSize];
+
+        float weightedReward = 0;
+        float totalWeight = 0;
+        int prevAction = 0;
+
+        for(int start = 0; start < trace.size(); start += EvolutionStrategies.BATCH_SIZE){
+            int batchSize = Math.min(EvolutionStrategies.BATCH_SIZE, trace.size() - start);
+
+            for(int b = 0; b < batchSize; b++){
+                int t = start + b;
+                trace.getObservation(t, observation);
+
+                //Build the update network input exactly like the agent: -1 state and action on the first step of an episode
+                if(trace.isEpisodeStart(t)){
+                    for(int i = 0; i < stateSize + numActions; i++){
+                        input[i] = -1;
+                    }
+                } else {
+                    System.arraycopy(state, 0, input, 0, stateSize);
+                    for(int i = 0; i < numActions; i++){
+                        input[stateSize + i] = 0;
+                    }
+                    input[stateSize + prevAction] = 1;
+                }
+                System.arraycopy(observation, 0, input, stateSize + numActions, observationSize);
+
+                System.arraycopy(EvolutionStrategies.predict(updateNetwork, input), 0, state, 0, stateSize);
+                System.arraycopy(state, 0, states, b * stateSize, stateSize);
+
+                prevAction = trace.getAction(t);
+            }
+
+            float[] output = EvolutionStrategies.predictBatch(policyNetwork, states, batchSize);
+
+            for(int b = 0; b < batchSize; b++){
+                int t = start + b;
+
+                System.arraycopy(output, b * numActions, logits, 0, numActions);
+                agent.softmax(logits, probs);
+
+                int action = trace.getAction(t);
+                float weight = Math.min(probs[action] / Math.max(trace.getActionProb(t), 1e-6f), 10f);
+
+                weightedReward += weight * trace.getReward(t);
+                totalWeight += weight;
+            }
+        }
+
+        return totalWeight > 0 ? weightedReward / totalWeight : 0f;
+    }
+
+    private static float[] predictBatch(ArrayList<Layer> network, float[] input, int batchSize){
+        float[] x = input;
+
+        for(int i = 0; i < network.size(); i++){
+            x = network.get(i).forwardBatch(x, batchSize);
+        }
+
+        return x;
+    }
+
+    private static float[] predict(ArrayList<Layer> network, float[] input){
+        GCAgent.copyArrayContents(input, network.get(0).inputVector);
+        network.get(0).forwardPass();
+
+        for(int i = 1; i < network.size(); i++){
+            GCAgent.copyArrayContents(network.get(i - 1).outputVector, network.get(i).inputVector);
+            network.get(i).forwardPass();
+        }
+
+        return network.get(network.size() - 1).outputVector;
+    }
+
+
+    /**
+     * Evaluates population members [start, end), splitting the range until each task has a single antithetic pair.
+     */
+    private class EvaluatePopulation extends RecursiveAction{
+
+        private static final long serialVersionUID = 1L;
+
+        private GCAgent agent;
+        private Trace trace;
+        private ArrayList<Layer> updateNetwork;
+        private ArrayList<Layer> policyNetwork;
+        private float[] base;
+        private float[][] noise;
+        private float[] positiveFitness;
+        private float[] negativeFitness;
+        private int start;
+        private int end;
+
+        EvaluatePopulation(GCAgent agent, Trace trace, ArrayList<Layer> updateNetwork, ArrayList<Layer> policyNetwork, float[] base, float[][] noise, float[] positiveFitness, float[] negativeFitness, int start, int end){
+            this.agent = agent;
+            this.trace = trace;
+            this.updateNetwork = updateNetwork;
+            this.policyNetwork = policyNetwork;
+            this.base = base;
+            this.noise = noise;
+            this.positiveFitness = positiveFitness;
+            this.negativeFitness = negativeFitness;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute(){
+            if(this.end - this.start > 1){
+                int mid = (this.start + this.end) >>> 1;
+
+                invokeAll(new EvaluatePopulation(this.agent, this.trace, this.updateNetwork, this.policyNetwork, this.base, this.noise, this.positiveFitness, this.negativeFitness, this.start, mid),
+                        new EvaluatePopulation(this.agent, this.trace, this.updateNetwork, this.policyNetwork, this.base, this.noise, this.positiveFitness, this.negativeFitness, mid, this.end));
+                return;
+            }
+
+            long cpuStart = this.agent.getOverhead().now();
+
+            //Layers hold their activations, so every task works on its own copies
+            ArrayList<Layer> update = GCAgent.duplicateNetwork(this.updateNetwork);
+            ArrayList<Layer> policy = GCAgent.duplicateNetwork(this.policyNetwork);
+
+            float[] candidate = new float[this.base.length];
+            float[] eps = this.noise[this.start];
+
+            for(int j = 0; j < candidate.length; j++){
+                candidate[j] = this.base[j] + EvolutionStrategies.this.sigma * eps[j];
+            }
+            GCAgent.setParameters(update, candidate);
+            this.positiveFitness[this.start] = EvolutionStrategies.evaluate(this.agent, this.trace, update, policy);
+
+            for(int j = 0; j < candidate.length; j++){
+                candidate[j] = this.base[j] - EvolutionStrategies.this.sigma * eps[j];
+            }
+            GCAgent.setParameters(update, candidate);
+            this.negativeFitness[this.start] = EvolutionStrategies.evaluate(this.agent, this.trace, update, policy);
+
+            this.agent.getOverhead().chargeBackground(this.agent.getOverhead().now() - cpuStart);
+        }
+    }
+}
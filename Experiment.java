@@ -189,11 +189,34 @@ public class Experiment{
 
         for(int i = 0; i < iterations; i++){
             iterate(this.pattern[i % this.pattern.length]);
+            agent.reportWork();
 
             agent.invoke();
             
         }
 
+        agent.shutdown();
+
+        long endTime = System.currentTimeMillis() / 1000;
+
+        return (int)(endTime - startTime) / ((float)iterations);
+    }
+
+
+    public float performExperimentAgentBackground(int iterations, long agentPeriodMillis){
+        long startTime = System.currentTimeMillis() / 1000;
+
+        //STEP_TIME and THROUGHPUT need the workload's own progress between decisions, which a background agent does not see
+        GCAgent agent = new GCAgent();
+        agent.setRewardMode(RewardMode.TOTAL_PAUSE);
+        agent.startBackground(agentPeriodMillis);
+
+        for(int i = 0; i < iterations; i++){
+            iterate(this.pattern[i % this.pattern.length]);
+        }
+
+        agent.shutdown();
+
         long endTime = System.currentTimeMillis() / 1000;
 
         return (int)(endTime - startTime) / ((float)iterations);
@@ -257,7 +280,13 @@ public class Experiment{
         float defaultTime = exp.performExperimentDefault(1 * 10);
         System.out.println("Default time: " + defaultTime);
 
-        float agentTime = exp.performExperimentAgent(1000 * 1000 * 30);
+        //"background" runs the agent on its own thread instead of invoking it from the workload loop
+        float agentTime;
+        if(args.length > 0 && args[0].equals("background")){
+            agentTime = exp.performExperimentAgentBackground(1000 * 1000 * 30, 10);
+        } else {
+            agentTime = exp.performExperimentAgent(1000 * 1000 * 30);
+        }
 
         System.out.println("Performance Ratio: " + ((float)defaultTime) / agentTime);
 
@@ -1,11 +1,38 @@
+import java.io.IOException;
 import java.lang.management.ManagementFactory;
-import java.lang.management.MemoryMXBean;
 import java.lang.management.MemoryUsage;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 public class GCAgent{
 
+    //12 JVM-wide memory figures followed by the GC notification driven figures
+    private static final int OBSERVATION_SIZE = 12 + GCObserver.OBSERVATION_SIZE;
+
+    private static final float BYTES_PER_GB = 1024f * 1024 * 1024;
+
+    //Default coalescing window for explicit collections, so decisions from many agents or threads never run System.gc() back to back
+    public static final long DEFAULT_MIN_GC_INTERVAL_MILLIS = 100;
+
+    //Checkpoint file header: "RLGC" and the format version
+    private static final int CHECKPOINT_MAGIC = 0x52474743;
+    private static final int CHECKPOINT_VERSION = 4;
+
     private float policyLR;
 
     private float valueLR;
@@ -27,191 +54,1181 @@ public class GCAgent{
 
     private long prevObsTime;
 
+    private RewardMode rewardMode;
+
+    //Activation of the hidden (non-identity) dense layers of all three networks
+    private Activation activation;
+    private float rewardScale;
+
+    //Pause total and work counter at the previous observation, used to compute per-interval rewards
+    private long prevTotalPauseMillis;
+    private long prevWorkUnits;
+
+    //Completed work reported by the application (THROUGHPUT and STEP_TIME rewards)
+    private LongAdder workUnits;
+
+    //invoke() calls since the last decision, including the ones that returned early because the chosen wait had not passed
+    private long invocationsSinceDecision;
+
     private boolean firstTimestep;
 
+    //Waits the policy can choose between decisions, and the resulting action space size (2 per wait: GC or not)
+    private Cadence cadence;
+    private int numActions;
+
+    //When the next decision is due (nanoTime or allocated bytes, depending on the cadence)
+    private long nextDecisionTime;
+    private long nextDecisionBytes;
+
+    //Discount for the latest transition, which depends on the time it covered when the cadence is enabled
+    private float stepDiscount;
+
+    //Inference only: no value network, no gradients, no learning
+    private boolean frozen;
+
+    //Frozen agents only: quantization to start once the calibration trace is full (null when none is pending), the networks
+    //the background quantizer produced for invokeFrozen() to switch to, and the result
+    private Quantization pendingQuantization;
+    private volatile Quantizer completedQuantization;
+    private volatile Quantizer.Report quantizationReport;
+
 
     private ArrayList<Layer> policyNetwork;
 
     private ArrayList<Layer> updateNetwork;
 
+    //LSTM state encoder replacing the dense update network (null unless enableRecurrentEncoder() is called)
+    private RecurrentEncoder recurrentEncoder;
+    private float[] encoderDObjdState;
+
     private ArrayList<Layer> valueNetwork;
 
+    //Turn the value and policy gradients into parameter updates; plain SGD unless setOptimizers() is called
+    private Optimizer valueOptimizer;
+    private Optimizer policyOptimizer;
+
     private float[] obs;
 
     private float probAction;
 
-    private int prev_action;
+    private int prev_action;
+
+    private float[] state;
+
+    private float bestMeanReward;
+    private float[] bestUpdateParams;
+
+    //Preallocated scratch buffers so that a steady state invoke() does not allocate
+    private float[] nextObs;
+    private float[] nextState;
+    private float[] updateInputVector;
+    private float[] probVector;
+    private float[] policyDObjdY;
+    private float[] valueDObjdY;
+
+    //Heap init/max never change, and the non-heap figures are only refreshed once per update interval,
+    //since reading a MemoryUsage from the MXBean allocates
+    private float heapInit;
+    private float heapMax;
+    private float[] nonHeapUsage;
+
+    //Collection counts, pauses and per-generation occupancy from GC notifications
+    private GCObserver gcObserver;
+
+    //Stopping conditions/debug statistics
+    private MovingAverage meanConfidence;
+    private MovingAverage meanReward;
+
+    //Counters and gauges exported over JMX
+    private GCAgentStats stats;
+
+    //Time spent per phase and the CPU budget
+    private AgentOverhead overhead;
+
+    //Experience replay (disabled unless enableReplay() is called)
+    private ReplayBuffer replayBuffer;
+    private int replayBatchSize;
+    private float replayRatio;
+    private float replayCredit;
+
+    //Minibatch buffers: sampled transitions, batch x state size states, per sample TD errors and network output gradients
+    private int[] replayIndices;
+    private float[] replayStates;
+    private float[] replayNextStates;
+    private float[] replayTDErrors;
+    private float[] replayValueDObjdY;
+    private float[] replayPolicyDObjdY;
+    private float[] replayLogits;
+
+    //Recording of observations, actions and rewards for offline training (null when not recording)
+    private Trace trace;
+
+    //Lets exactly one of many concurrent maybeInvoke() callers run a step
+    private AtomicBoolean stepGate;
+
+    //Explicit collections closer together than this are coalesced (see GCCoalescer)
+    private volatile long minGCIntervalNanos;
+
+    //Background mode: the agent invokes itself on a daemon scheduler thread
+    private ScheduledExecutorService backgroundExecutor;
+    private long backgroundPeriodNanos;
+
+
+    public GCAgent(){
+        this(200, 128, 128, 128, 0.01f, 0.001f, 0.001f, 0.95f, 0.9999f, 10000);
+    }
+
+    public GCAgent(int stateSize, int hiddenLayerSizePolicy, int hiddenLayerSizeValue, int hiddenLayerSizeUpdate, float valueLearningRate, float policyLearningRate, float updateStepSize, float confidenceStopThreshold, float discountFactor, int minUpdateInterval){
+        this(stateSize, hiddenLayerSizePolicy, hiddenLayerSizeValue, hiddenLayerSizeUpdate, valueLearningRate, policyLearningRate, updateStepSize, confidenceStopThreshold, discountFactor, minUpdateInterval, Cadence.none());
+    }
+
+    /**
+     * Creates an agent whose policy also chooses how long to wait before its next decision, from the waits in cadence.
+     * With a cadence other than Cadence.none(), discountFactor applies per cadence.getReferenceNanos() of time covered.
+     */
+    public GCAgent(int stateSize, int hiddenLayerSizePolicy, int hiddenLayerSizeValue, int hiddenLayerSizeUpdate, float valueLearningRate, float policyLearningRate, float updateStepSize, float confidenceStopThreshold, float discountFactor, int minUpdateInterval, Cadence cadence){
+
+        this.stateSize = stateSize;
+        this.observationSize = GCAgent.OBSERVATION_SIZE;
+
+        this.cadence = cadence;
+        this.numActions = cadence.getNumActions();
+
+        this.valueLR = valueLearningRate;
+        this.policyLR = policyLearningRate;
+        this.updateStepSize = updateStepSize;
+        this.confidenceStopThreshold = confidenceStopThreshold;
+        this.discountFactor = discountFactor;
+        this.minUpdateInterval = minUpdateInterval;
+
+        //Create the functions
+        this.createPolicyNetwork(hiddenLayerSizePolicy);
+        this.createValueNetwork(hiddenLayerSizeValue);
+        this.createUpdateNetwork(hiddenLayerSizeUpdate);
+
+        this.setOptimizers(new SGDOptimizer(), new SGDOptimizer());
+
+        //Other fields
+        this.firstTimestep = true;
+        this.bestMeanReward = Float.NEGATIVE_INFINITY;
+        this.meanReward = new MovingAverage(this.minUpdateInterval);
+        this.meanConfidence = new MovingAverage(this.minUpdateInterval);
+
+        this.createBuffers();
+    }
+
+    private void createBuffers(){
+        this.gcObserver = new GCObserver();
+
+        this.stepGate = new AtomicBoolean(false);
+        this.minGCIntervalNanos = TimeUnit.MILLISECONDS.toNanos(GCAgent.DEFAULT_MIN_GC_INTERVAL_MILLIS);
+
+        this.overhead = new AgentOverhead();
+        this.stats = new GCAgentStats(this.overhead);
+        this.stats.register();
+
+        this.rewardMode = RewardMode.STEP_TIME;
+        this.activation = Activation.TANH;
+        this.rewardScale = 1f;
+        this.workUnits = new LongAdder();
+
+        this.obs = new float[this.observationSize];
+        this.nextObs = new float[this.observationSize];
+
+        this.state = new float[this.stateSize];
+        this.nextState = new float[this.stateSize];
+
+        this.updateInputVector = new float[this.stateSize + this.numActions + this.observationSize];
+
+        this.probVector = new float[this.numActions];
+        this.policyDObjdY = new float[this.numActions];
+        this.valueDObjdY = new float[1];
+        this.valueDObjdY[0] = 1;
+
+        this.bestUpdateParams = GCAgent.copyParams(this.updateNetwork);
+
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        this.heapInit = heap.getInit() / GCAgent.BYTES_PER_GB;
+        this.heapMax = heap.getMax() / GCAgent.BYTES_PER_GB;
+
+        this.nonHeapUsage = new float[4];
+        this.refreshNonHeapUsage();
+    }
+
+    /**
+     * Thread-safe front end of invoke() for applications where many worker threads call the agent. The first caller to arrive
+     * runs the step; callers arriving while a step is running return immediately without waiting. Returns true if this call ran the step.
+     */
+    public boolean maybeInvoke(){
+        if(!this.stepGate.compareAndSet(false, true)){
+            return false;
+        }
+
+        //The gate's compare-and-set/set pair orders the previous runner's writes before this runner's reads
+        try{
+            this.invoke();
+        } finally {
+            this.stepGate.set(false);
+        }
+
+        return true;
+    }
+
+    /**
+     * Invokes the agent, which does the TD error update, updates the internal agent/value states and parameters and performs the action.
+     * Not thread-safe: call it from a single thread, or use maybeInvoke().
+     */
+    public void invoke(){
+        this.invocationsSinceDecision++;
+
+        //The policy chose to wait: return immediately until the chosen time or allocation volume has passed
+        if(!this.isDecisionDue()){
+            return;
+        }
+
+        //One process CPU time read per invocation; both budget decisions below use it
+        this.overhead.checkBudget();
+
+        //Far over the CPU budget: skip the whole invocation until the rolling overhead recovers
+        if(this.overhead.shouldSkipInvocation()){
+            this.overhead.recordSkippedInvocation();
+            return;
+        }
+
+        long startTime = System.nanoTime();
+
+        if(this.frozen){
+            this.invokeFrozen();
+        } else {
+            this.step(!this.overhead.isOverBudget());
+        }
+
+        this.stats.recordInvoke(System.nanoTime() - startTime);
+    }
+
+    /**
+     * One decision. When learn is false (over the CPU budget) the TD update and replay are skipped, but the state still advances.
+     */
+    private void step(boolean learn){
+
+        boolean episodeStart = this.firstTimestep;
+        long time = this.overhead.now();
+        
+        //If this is the first timestep, do not perform the TD error update. Instead, just select an action and invoke.
+        if(this.firstTimestep){
+
+            //Get the current observation
+            this.getObservation(this.obs);
+            time = this.overhead.record(AgentOverhead.OBSERVATION, time);
+
+            //Run input update input vector through network to get the state
+            GCAgent.copyArrayContents(this.updateFunctionPredictFirstTimestep(this.obs), this.state);
+
+            //Select action from policy
+            this.policyFunctionPredict(this.state, this.probVector);
+            this.prev_action = this.selectAction(this.probVector);
+            time = this.overhead.record(AgentOverhead.INFERENCE, time);
+
+            if(Cadence.isGCAction(this.prev_action)){
+                this.performGC();
+                time = this.overhead.record(AgentOverhead.GC_ACTION, time);
+            }
+
+            //Record the probability of the action being selected at the current state
+            this.probAction = this.probVector[this.prev_action];
+
+            //Record the "confidence" level (maximum probability out of policy distribution)
+            this.meanConfidence.addSample(GCAgent.max(this.probVector));
+
+            this.firstTimestep = false;
+
+            this.startRewardInterval();
+        } else {
+
+            //Get the next observation
+            this.getObservation(this.nextObs);
+
+            //Get the new reward
+            float reward = this.computeReward();
+            this.meanReward.addSample(reward);
+
+            if(this.trace != null){
+                this.trace.setLastReward(reward);
+            }
+            time = this.overhead.record(AgentOverhead.OBSERVATION, time);
+
+            //Get next state. The update network output buffer is reused, so copy it into the agent's own buffer.
+            GCAgent.copyArrayContents(this.updateFunctionPredict(this.state, this.prev_action, this.nextObs), this.nextState);
+            time = this.overhead.record(AgentOverhead.INFERENCE, time);
+
+            if(learn){
+                //Get values
+                float nextValue = this.valueFunctionPredict(this.nextState);
+                float value = this.valueFunctionPredict(this.state);
+
+                //Calculate the TD error
+                float tdError = reward + (this.stepDiscount * nextValue) - value;
+                this.stats.recordTDError(tdError);
+
+                //Adjust value function
+                //Backprop data should already be stored in the value function object since the last call to predict was on the "current" inputs
+                this.neuralNetworkUpdate(this.valueNetwork, this.valueOptimizer, this.valueDObjdY, this.valueLR, tdError);
+
+                //Adjust the policy function
+                //Run the predict function to populate the backprop data in the function object
+                float[] policyOutput = this.neuralNetworkPredict(this.policyNetwork, this.state);
+                this.softmaxdObjdX(policyOutput, this.prev_action, this.policyDObjdY);
+                this.neuralNetworkUpdate(this.policyNetwork, this.policyOptimizer, this.policyDObjdY, this.policyLR, tdError);
+
+                //The recurrent encoder learns from both heads' gradients wrt the state, which came from the encode() before the latest
+                if(this.recurrentEncoder != null){
+                    float[] valueDX = this.valueNetwork.get(0).dObjectivedX;
+                    float[] policyDX = this.policyNetwork.get(0).dObjectivedX;
+
+                    for(int i = 0; i < this.stateSize; i++){
+                        this.encoderDObjdState[i] = this.valueLR * valueDX[i] + this.policyLR * policyDX[i];
+                    }
+
+                    this.recurrentEncoder.backpropagate(this.encoderDObjdState, 1, tdError);
+                }
+
+                //Learn from stored transitions as well
+                if(this.replayBuffer != null){
+                    this.replayBuffer.add(this.state, this.prev_action, this.probAction, reward, this.stepDiscount, this.nextState);
+                    this.replay();
+                }
+
+                time = this.overhead.record(AgentOverhead.LEARNING, time);
+            } else {
+                this.overhead.recordSkippedLearningStep();
+            }
+            
+            
+            //Select the next action
+            this.policyFunctionPredict(this.nextState, this.probVector);
+            this.prev_action = this.selectAction(this.probVector);
+            time = this.overhead.record(AgentOverhead.INFERENCE, time);
+
+            if(Cadence.isGCAction(this.prev_action)){
+                this.performGC();
+                time = this.overhead.record(AgentOverhead.GC_ACTION, time);
+            }
+
+            //Set the "current" observation, action probability, and state fields to the past fields by swapping buffers
+            float[] temp = this.obs;
+            this.obs = this.nextObs;
+            this.nextObs = temp;
+
+            temp = this.state;
+            this.state = this.nextState;
+            this.nextState = temp;
+
+            this.probAction = this.probVector[this.prev_action];
+
+            this.meanConfidence.addSample(GCAgent.max(this.probVector));
+
+        }
+
+        if(this.trace != null){
+            this.trace.addStep(this.obs, this.prev_action, this.probAction, episodeStart);
+        }
+
+        this.scheduleNextDecision();
+
+
+        //Determine if update function should be adjusted
+        if(this.meanReward.getNumSamples() >= this.minUpdateInterval ){
+            if(this.recurrentEncoder != null){
+                //The recurrent encoder is trained by gradient, so there is no random search: only remember the best parameters
+                if(this.meanReward.getMean() > this.bestMeanReward){
+                    this.bestMeanReward = this.meanReward.getMean();
+                    GCAgent.copyParams(this.updateNetwork, this.bestUpdateParams);
+                }
+            } else if(this.meanReward.getMean() > this.bestMeanReward && this.meanConfidence.getMean() > this.confidenceStopThreshold){
+                //Current update params are better than previous, set variables
+                this.bestMeanReward = this.meanReward.getMean();
+                GCAgent.copyParams(this.updateNetwork, this.bestUpdateParams);
+
+                            //Create new update function
+                GCAgent.setParameters(this.updateNetwork, this.bestUpdateParams);
+                this.randomOffsetParams(this.updateNetwork, this.updateStepSize);
+                this.firstTimestep = true;
+                this.stats.recordAcceptedGeneration();
+
+                //Stored states were produced by the previous update network
+                if(this.replayBuffer != null){
+                    this.replayBuffer.clear();
+                }
+            }
+            
+            this.stats.recordWindow(this.meanReward.getMean(), this.meanConfidence.getMean(), this.bestMeanReward);
+
+            this.meanReward.reset();
+            this.meanConfidence.reset();
+
+            this.refreshNonHeapUsage();
+            
+        }
+
+    }
+
+
+
+    /**
+     * Starts invoking the agent on its own daemon thread every periodMillis milliseconds (wall clock), so that the
+     * application threads never pay for observation, inference, learning or the GC action.
+     * The application should not call invoke() itself while the agent is running in the background.
+     */
+    public synchronized void startBackground(long periodMillis){
+        if(periodMillis <= 0){
+            throw new IllegalArgumentException("periodMillis must be positive, got " + periodMillis);
+        }
+
+        if(this.backgroundExecutor != null){
+            throw new IllegalStateException("Agent is already running in the background.");
+        }
+
+        this.backgroundExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread t = new Thread(runnable, "gc-agent");
+            t.setDaemon(true);
+            return t;
+        });
+
+        this.backgroundPeriodNanos = TimeUnit.MILLISECONDS.toNanos(periodMillis);
+        this.backgroundExecutor.schedule(this::backgroundInvoke, this.backgroundPeriodNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stops the background thread started by startBackground() and waits for the current invocation (if any) to finish.
+     */
+    public synchronized void stopBackground(){
+        if(this.backgroundExecutor == null){
+            return;
+        }
+
+        this.backgroundExecutor.shutdown();
+
+        try{
+            this.backgroundExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch(InterruptedException exception){
+            Thread.currentThread().interrupt();
+        }
+
+        this.backgroundExecutor = null;
+    }
+
+    /**
+     * Stops the background thread (if running) and unsubscribes from GC notifications. The agent should not be invoked afterwards.
+     */
+    public void shutdown(){
+        this.stopBackground();
+        this.gcObserver.close();
+        this.stats.unregister();
+    }
+
+    /**
+     * Live statistics of this agent, also registered as a platform MBean (see GCAgentStats.getObjectName()).
+     */
+    public GCAgentStats getStats(){
+        return this.stats;
+    }
+
+    /**
+     * Limits the agent to the given fraction of process CPU time (e.g. 0.005 for 0.5%), 0 for no limit.
+     * Over budget the agent skips learning steps; at more than twice the budget it skips whole invocations until it recovers.
+     * The GC action itself is accounted but not counted against the budget. The budget covers the agent's CPU time on every thread:
+     * invoke(), the kernel workers, the background quantization and evolution strategies run on this agent (see AgentOverhead).
+     */
+    public void setOverheadBudget(float fraction){
+        this.overhead.setBudget(fraction);
+    }
+
+    public AgentOverhead getOverhead(){
+        return this.overhead;
+    }
+
+    /**
+     * Explicit collections requested less than minIntervalMillis after the previous one (by any agent) are coalesced into it.
+     * Requests made while another collection is in flight are always coalesced. Defaults to DEFAULT_MIN_GC_INTERVAL_MILLIS;
+     * 0 opts out and only coalesces overlapping requests.
+     */
+    public void setMinGCInterval(long minIntervalMillis){
+        if(minIntervalMillis < 0){
+            throw new IllegalArgumentException("minIntervalMillis must not be negative, got " + minIntervalMillis);
+        }
+
+        this.minGCIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minIntervalMillis);
+    }
+
+    private void performGC(){
+        if(GCCoalescer.requestGC(this.minGCIntervalNanos)){
+            this.stats.recordExplicitGC();
+        } else {
+            this.stats.recordCoalescedGC();
+        }
+    }
+
+    public synchronized boolean isRunningInBackground(){
+        return this.backgroundExecutor != null;
+    }
+
+    private void backgroundInvoke(){
+        //An exception escaping a scheduled task would silently cancel all future invocations, so report it and keep going
+        try{
+            this.maybeInvoke();
+        } catch(RuntimeException exception){
+            System.err.println("Exception occured in background GCAgent invocation.");
+            System.err.println(exception);
+        }
+
+        //Sleep for the period, or until the wall-clock wait the policy chose has passed if that is longer.
+        //Allocation based waits are polled once per period by invoke() itself.
+        long delay = this.backgroundPeriodNanos;
+        if(!this.cadence.isAllocatedBytes()){
+            delay = Math.max(delay, this.nextDecisionTime - System.nanoTime());
+        }
+
+        ScheduledExecutorService executor = this.backgroundExecutor;
+        if(executor != null && !executor.isShutdown()){
+            try{
+                executor.schedule(this::backgroundInvoke, delay, TimeUnit.NANOSECONDS);
+            } catch(RejectedExecutionException exception){
+                //stopBackground() raced with us; nothing left to do
+            }
+        }
+    }
+
+    /**
+     * Parks the calling thread until the agent's next decision is due, for applications that drive invoke() from their own agent thread.
+     * Allocation based waits are polled every millisecond.
+     */
+    public void awaitNextDecision(){
+        while(!this.isDecisionDue()){
+            if(this.cadence.isAllocatedBytes()){
+                LockSupport.parkNanos(1000000L);
+            } else {
+                LockSupport.parkNanos(this.nextDecisionTime - System.nanoTime());
+            }
+
+            if(Thread.currentThread().isInterrupted()){
+                return;
+            }
+        }
+    }
+
+    private boolean isDecisionDue(){
+        if(this.cadence.isAllocatedBytes()){
+            return this.gcObserver.getAllocatedBytes() >= this.nextDecisionBytes;
+        }
+
+        return System.nanoTime() - this.nextDecisionTime >= 0;
+    }
+
+    private void scheduleNextDecision(){
+        long wait = this.cadence.getInterval(Cadence.getIntervalIndex(this.prev_action));
+
+        if(this.cadence.isAllocatedBytes()){
+            this.nextDecisionBytes = this.gcObserver.getAllocatedBytes() + wait;
+        } else {
+            this.nextDecisionTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(wait);
+        }
+    }
+
+    /**
+     * Selects how the reward is computed from the interval between two decisions. Defaults to STEP_TIME.
+     */
+    public void setRewardMode(RewardMode rewardMode){
+        this.rewardMode = rewardMode;
+    }
+
+    public RewardMode getRewardMode(){
+        return this.rewardMode;
+    }
+
+    /**
+     * Replaces the activation of every hidden layer in the policy, value and update networks, e.g. with Activation.FAST_TANH.
+     * Output layers without an activation are left alone. Defaults to TANH.
+     */
+    public void setActivation(Activation activation){
+        this.activation = activation;
+
+        GCAgent.setActivation(this.policyNetwork, activation);
+        GCAgent.setActivation(this.valueNetwork, activation);
+        GCAgent.setActivation(this.updateNetwork, activation);
+    }
+
+    public Activation getActivation(){
+        return this.activation;
+    }
+
+    private static void setActivation(ArrayList<Layer> network, Activation activation){
+        if(network == null){
+            return;
+        }
+
+        for(Layer layer : network){
+            if(layer instanceof Dense && ((Dense)layer).getActivation() != Activation.IDENTITY){
+                ((Dense)layer).setActivation(activation);
+            }
+        }
+    }
+
+    /**
+     * Replaces the optimizers of the value and policy networks (plain SGD by default), e.g. with AdamOptimizer. Each optimizer serves
+     * one network and starts from fresh state; valueLR and policyLR become their learning rates. Optimizer state is not checkpointed.
+     * The recurrent encoder, when enabled, keeps learning by plain SGD.
+     */
+    public void setOptimizers(Optimizer valueOptimizer, Optimizer policyOptimizer){
+        if(this.frozen){
+            throw new IllegalStateException("A frozen agent does not learn.");
+        }
+
+        if(valueOptimizer == policyOptimizer){
+            throw new IllegalArgumentException("The value and policy networks need separate optimizers");
+        }
+
+        valueOptimizer.attach(this.valueNetwork);
+        policyOptimizer.attach(this.policyNetwork);
+
+        this.valueOptimizer = valueOptimizer;
+        this.policyOptimizer = policyOptimizer;
+    }
+
+    public Optimizer getValueOptimizer(){
+        return this.valueOptimizer;
+    }
+
+    public Optimizer getPolicyOptimizer(){
+        return this.policyOptimizer;
+    }
+
+    /**
+     * Multiplies every reward, e.g. to bring THROUGHPUT rewards (units per second) into a range the value network can fit.
+     */
+    public void setRewardScale(float rewardScale){
+        this.rewardScale = rewardScale;
+    }
+
+    /**
+     * Reports units of completed application work, used by the THROUGHPUT reward. Cheap and safe to call from any thread.
+     */
+    public void reportWork(long units){
+        this.workUnits.add(units);
+    }
+
+    public void reportWork(){
+        this.workUnits.increment();
+    }
+
+    private void startRewardInterval(){
+        this.prevObsTime = System.nanoTime();
+        this.prevTotalPauseMillis = this.gcObserver.getTotalPauseMillis();
+        this.prevWorkUnits = this.workUnits.sum();
+        this.gcObserver.takeMaxPauseMillis();
+        this.invocationsSinceDecision = 0;
+    }
+
+    private float computeReward(){
+        long currentObsTime = System.nanoTime();
+        float deltaSeconds = (currentObsTime - this.prevObsTime) / 1e9f;
+
+        long totalPauseMillis = this.gcObserver.getTotalPauseMillis();
+        float pauseSeconds = (totalPauseMillis - this.prevTotalPauseMillis) / 1000f;
+
+        long work = this.workUnits.sum();
+        long workDelta = work - this.prevWorkUnits;
+
+        float maxPauseSeconds = this.gcObserver.takeMaxPauseMillis() / 1000f;
+
+        //With a cadence, decisions cover different amounts of time. Discount per reference duration covered,
+        //and integrate the throughput rate over the covered durations so that long waits are not undervalued.
+        float coveredSteps = 1f;
+        this.stepDiscount = this.discountFactor;
+        if(this.cadence.isEnabled()){
+            coveredSteps = (currentObsTime - this.prevObsTime) / (float)this.cadence.getReferenceNanos();
+            this.stepDiscount = (float)Math.pow(this.discountFactor, coveredSteps);
+        }
+
+        //STEP_TIME measures seconds per unit of application work: per reported work unit when the application reports work,
+        //otherwise per invoke() call the decision covered (an application that calls invoke() once per unit of work)
+        long invocations = Math.max(1, this.invocationsSinceDecision);
+        float secondsPerUnit = deltaSeconds / (workDelta > 0 ? workDelta : invocations);
+
+        this.prevObsTime = currentObsTime;
+        this.prevTotalPauseMillis = totalPauseMillis;
+        this.prevWorkUnits = work;
+        this.invocationsSinceDecision = 0;
+
+        float reward;
+        switch(this.rewardMode){
+            case TOTAL_PAUSE:
+                reward = -pauseSeconds;
+                break;
+            case MAX_PAUSE:
+                reward = -maxPauseSeconds;
+                break;
+            case THROUGHPUT:
+                reward = deltaSeconds > 0 ? coveredSteps * workDelta / deltaSeconds : 0f;
+                break;
+            default:
+                reward = -coveredSteps * secondsPerUnit;
+                break;
+        }
+
+        return this.rewardScale * reward;
+    }
+
+
+
+    /**
+     * Switches the agent to inference only. The value network, replay buffer, best update parameters and all gradient storage
+     * are released, and invoke() from then on only runs the update and policy forward passes to pick and perform an action.
+     * This cannot be undone; load the checkpoint again to resume training.
+     * A running background thread is stopped for the switch and restarted with the same period afterwards, and maybeInvoke()
+     * callers are held off until the switch is done. Do not call it while another thread is inside invoke() directly.
+     */
+    public synchronized void freeze(){
+        long period = this.backgroundPeriodNanos;
+        boolean background = this.isRunningInBackground();
+
+        if(background){
+            this.stopBackground();
+        }
+
+        while(!this.stepGate.compareAndSet(false, true)){
+            Thread.yield();
+        }
+
+        try{
+            this.frozen = true;
+
+            for(Layer l : this.policyNetwork){
+                l.releaseGradient();
+            }
+
+            for(Layer l : this.updateNetwork){
+                l.releaseGradient();
+            }
+
+            this.valueNetwork = null;
+            this.valueOptimizer = null;
+            this.policyOptimizer = null;
+            this.bestUpdateParams = null;
+            this.disableReplay();
+        } finally {
+            this.stepGate.set(false);
+        }
+
+        if(background){
+            this.startBackground(Math.max(1, TimeUnit.NANOSECONDS.toMillis(period)));
+        }
+    }
+
+    public boolean isFrozen(){
+        return this.frozen;
+    }
+
+    /**
+     * Loads a trained agent from a checkpoint and freezes it for deployment.
+     */
+    public static GCAgent loadFrozen(String path) throws IOException{
+        GCAgent agent = GCAgent.loadCheckpoint(path);
+        agent.freeze();
+
+        return agent;
+    }
+
+    private void invokeFrozen(){
+        //A background quantization finished: switch to its networks between two decisions
+        Quantizer quantized = this.completedQuantization;
+        if(quantized != null){
+            this.completedQuantization = null;
+            this.installQuantization(quantized);
+        }
+
+        long time = this.overhead.now();
+
+        this.getObservation(this.obs);
+        time = this.overhead.record(AgentOverhead.OBSERVATION, time);
+
+        boolean episodeStart = this.firstTimestep;
+        if(this.firstTimestep){
+            GCAgent.copyArrayContents(this.updateFunctionPredictFirstTimestep(this.obs), this.state);
+            this.firstTimestep = false;
+        } else {
+            GCAgent.copyArrayContents(this.updateFunctionPredict(this.state, this.prev_action, this.obs), this.state);
+        }
+
+        this.policyFunctionPredict(this.state, this.probVector);
+        this.prev_action = this.selectAction(this.probVector);
+        time = this.overhead.record(AgentOverhead.INFERENCE, time);
+
+        if(Cadence.isGCAction(this.prev_action)){
+            this.performGC();
+            this.overhead.record(AgentOverhead.GC_ACTION, time);
+        }
+
+        this.probAction = this.probVector[this.prev_action];
+        this.meanConfidence.addSample(GCAgent.max(this.probVector));
+
+        if(this.trace != null){
+            this.trace.addStep(this.obs, this.prev_action, this.probAction, episodeStart);
+
+            if(this.pendingQuantization != null && this.trace.isFull()){
+                this.startQuantization(this.pendingQuantization, this.stopTraceRecording());
+                this.pendingQuantization = null;
+            }
+        }
+
+        this.scheduleNextDecision();
+    }
+
+    /**
+     * Replaces the dense layers of a frozen agent's policy and (dense) update network with quantized copies, calibrated on trace,
+     * typically one recorded by this agent (see startTraceRecording()). Returns the accuracy report; the episode restarts.
+     */
+    public Quantizer.Report quantize(Quantization quantization, Trace trace){
+        if(!this.frozen){
+            throw new IllegalStateException("Only a frozen agent can be quantized.");
+        }
+
+        this.installQuantization(Quantizer.quantize(this, trace, quantization));
+
+        return this.quantizationReport;
+    }
+
+    private void installQuantization(Quantizer quantizer){
+        this.policyNetwork = quantizer.getPolicyNetwork();
+        if(quantizer.getUpdateNetwork() != null){
+            this.updateNetwork = quantizer.getUpdateNetwork();
+        }
+
+        this.firstTimestep = true;
+        this.quantizationReport = quantizer.getReport();
+        this.stats.recordQuantization(this.quantizationReport);
+    }
+
+    /**
+     * Quantizes on a thread of its own, so the replays and conversions stay off the invoke path. Quantizer only reads the frozen
+     * float networks (it replays duplicates), and invokeFrozen() picks the result up before its next decision.
+     */
+    private void startQuantization(Quantization quantization, Trace trace){
+        Thread quantizer = new Thread(() -> {
+            long start = this.overhead.now();
+
+            try{
+                this.completedQuantization = Quantizer.quantize(this, trace, quantization);
+            } catch(RuntimeException exception){
+                System.err.println("GCAgent quantization failed, the agent keeps its float networks.");
+                System.err.println(exception);
+            } finally {
+                this.overhead.chargeBackground(this.overhead.now() - start);
+            }
+        }, "gc-agent-quantizer");
+
+        quantizer.setDaemon(true);
+        quantizer.start();
+    }
+
+    /**
+     * Records the next calibrationSteps decisions of this frozen agent in float, then quantizes it on them in the background
+     * (see quantize()) and switches to the quantized networks. The result is available from getQuantizationReport() and the MBean.
+     */
+    public void quantizeAfterCalibration(Quantization quantization, int calibrationSteps){
+        if(!this.frozen){
+            throw new IllegalStateException("Only a frozen agent can be quantized.");
+        }
+
+        this.startTraceRecording(calibrationSteps);
+        this.pendingQuantization = quantization;
+    }
+
+    /**
+     * Report of the last quantization, or null.
+     */
+    public Quantizer.Report getQuantizationReport(){
+        return this.quantizationReport;
+    }
+
+    /**
+     * Starts recording every decision (observation, action, action probability, reward) into a trace of the given capacity,
+     * for offline training such as EvolutionStrategies. Recording stops silently once the trace is full.
+     */
+    public void startTraceRecording(int capacity){
+        this.trace = new Trace(capacity, this.observationSize);
+    }
+
+    /**
+     * Stops recording and returns the trace recorded so far.
+     */
+    public Trace stopTraceRecording(){
+        Trace recorded = this.trace;
+        this.trace = null;
+
+        return recorded;
+    }
+
+    ArrayList<Layer> getUpdateNetwork(){
+        return this.updateNetwork;
+    }
+
+    ArrayList<Layer> getPolicyNetwork(){
+        return this.policyNetwork;
+    }
+
+    ArrayList<Layer> getValueNetwork(){
+        return this.valueNetwork;
+    }
+
+    boolean hasRecurrentEncoder(){
+        return this.recurrentEncoder != null;
+    }
+
+    int getStateSize(){
+        return this.stateSize;
+    }
+
+    int getNumActions(){
+        return this.numActions;
+    }
+
+    /**
+     * Makes the current update network parameters the best known ones, e.g. after offline training, and restarts the episode
+     * so that the state is rebuilt by the new update network.
+     */
+    void acceptUpdateNetwork(){
+        GCAgent.copyParams(this.updateNetwork, this.bestUpdateParams);
+        this.firstTimestep = true;
+        this.stats.recordAcceptedGeneration();
+
+        if(this.replayBuffer != null){
+            this.replayBuffer.clear();
+        }
+    }
+
+    /**
+     * Copies of the update and policy networks (in that order) taken while no step is running (see maybeInvoke()), for offline
+     * training on other threads.
+     */
+    ArrayList<ArrayList<Layer>> duplicateNetworksExclusive(){
+        while(!this.stepGate.compareAndSet(false, true)){
+            Thread.yield();
+        }
+
+        try{
+            ArrayList<ArrayList<Layer>> copies = new ArrayList<ArrayList<Layer>>();
+            copies.add(GCAgent.duplicateNetwork(this.updateNetwork));
+            copies.add(GCAgent.duplicateNetwork(this.policyNetwork));
+
+            return copies;
+        } finally {
+            this.stepGate.set(false);
+        }
+    }
+
+    /**
+     * Writes parameters into the update network and accepts them (see acceptUpdateNetwork()) while no step is running,
+     * so maybeInvoke() callers never see a half written network.
+     */
+    void installUpdateParametersExclusive(float[] parameters){
+        while(!this.stepGate.compareAndSet(false, true)){
+            Thread.yield();
+        }
+
+        try{
+            GCAgent.setParameters(this.updateNetwork, parameters);
+            this.acceptUpdateNetwork();
+        } finally {
+            this.stepGate.set(false);
+        }
+    }
+
+    /**
+     * States the dense update network produces for every step of trace, one row of stateSize per step, built like the agent builds
+     * them online: -1 state and action on the first step of an episode.
+     */
+    float[] encodeTrace(Trace trace){
+        if(this.recurrentEncoder != null){
+            throw new IllegalStateException("Trace encoding needs the dense update network.");
+        }
 
-    private float[] state;
+        float[] states = new float[trace.size() * this.stateSize];
+        float[] observation = new float[this.observationSize];
+        float[] state = new float[this.stateSize];
 
-    private float bestMeanReward;
-    private ArrayList<float[][]> bestUpdateParams;
+        for(int t = 0; t < trace.size(); t++){
+            trace.getObservation(t, observation);
 
-    //Stopping conditions/debug statistics
-    private MovingAverage meanConfidence;
-    private MovingAverage meanReward;
+            if(trace.isEpisodeStart(t)){
+                GCAgent.copyArrayContents(this.updateFunctionPredictFirstTimestep(observation), state);
+            } else {
+                GCAgent.copyArrayContents(this.updateFunctionPredict(state, trace.getAction(t - 1), observation), state);
+            }
 
+            System.arraycopy(state, 0, states, t * this.stateSize, this.stateSize);
+        }
 
-    public GCAgent(){
-        this.stateSize = 200;
-        this.observationSize = this.getObservation().length;
+        return states;
+    }
 
-        this.valueLR = 0.01f;
-        this.policyLR = 0.001f;
-        this.updateStepSize = 0.001f;
-        this.confidenceStopThreshold = 0.95f;
-        this.discountFactor = 0.9999f;
-        this.minUpdateInterval = 10000;
+    /**
+     * One TD update of the value and policy networks from a recorded transition, as in replay: the policy gradient is weighted by
+     * the clipped ratio of the current policy's probability of action to behaviourProb. The trace keeps no step durations, so the
+     * discount is discountFactor. Returns the TD error.
+     */
+    float learnFromTransition(float[] state, int action, float behaviourProb, float reward, float[] nextState){
+        float nextValue = this.valueFunctionPredict(nextState);
+        float value = this.valueFunctionPredict(state);
 
-        //Create the functions
-        this.createPolicyNetwork(128);
-        this.createValueNetwork(128);
-        this.createUpdateNetwork(128);
+        float tdError = reward + (this.discountFactor * nextValue) - value;
+        this.neuralNetworkUpdate(this.valueNetwork, this.valueOptimizer, this.valueDObjdY, this.valueLR, tdError);
 
-        //Other fields
-        this.firstTimestep = true;
-        this.bestMeanReward = Float.NEGATIVE_INFINITY;
-        this.meanReward = new MovingAverage(this.minUpdateInterval);
-        this.meanConfidence = new MovingAverage(this.minUpdateInterval);
-    }
+        float[] policyOutput = this.neuralNetworkPredict(this.policyNetwork, state);
+        this.softmax(policyOutput, this.probVector);
+        float ratio = Math.min(1f, this.probVector[action] / Math.max(behaviourProb, 1e-6f));
 
-    public GCAgent(int stateSize, int hiddenLayerSizePolicy, int hiddenLayerSizeValue, int hiddenLayerSizeUpdate, float valueLearningRate, float policyLearningRate, float updateStepSize, float confidenceStopThreshold, float discountFactor, int minUpdateInterval){
+        this.softmaxdObjdX(policyOutput, action, this.policyDObjdY);
+        this.neuralNetworkUpdate(this.policyNetwork, this.policyOptimizer, this.policyDObjdY, this.policyLR, tdError * ratio);
 
-        this.stateSize = stateSize;
+        return tdError;
+    }
 
-        this.valueLR = valueLearningRate;
-        this.policyLR = policyLearningRate;
-        this.updateStepSize = updateStepSize;
-        this.confidenceStopThreshold = confidenceStopThreshold;
-        this.discountFactor = discountFactor;
-        this.minUpdateInterval = minUpdateInterval;
+    /**
+     * Largest action probability of the policy at state, the quantity meanConfidence averages.
+     */
+    float policyConfidence(float[] state){
+        this.policyFunctionPredict(state, this.probVector);
 
-        //Create the functions
-        this.createPolicyNetwork(hiddenLayerSizePolicy);
-        this.createValueNetwork(hiddenLayerSizeValue);
-        this.createUpdateNetwork(hiddenLayerSizeUpdate);
+        return GCAgent.max(this.probVector);
+    }
 
-        //Other fields
-        this.firstTimestep = true;
-        this.bestMeanReward = Float.NEGATIVE_INFINITY;
-        this.meanReward = new MovingAverage(this.minUpdateInterval);
-        this.meanConfidence = new MovingAverage(this.minUpdateInterval);
+    float getConfidenceStopThreshold(){
+        return this.confidenceStopThreshold;
     }
 
     /**
-     * Invokes the agent, which does the TD error update, updates the internal agent/value states and parameters and performs the action.
+     * Replaces the dense update network with an LSTM state encoder of stateSize units, trained end to end from the TD updates of the
+     * value and policy networks by backpropagation through the last truncationSteps steps (see RecurrentEncoder). The LSTM carries
+     * its memory in its own cell state, so a much smaller stateSize than the dense default of 200 works, e.g. 32.
+     * Call it before the first invoke(); the episode restarts and offline random search (EvolutionStrategies) no longer applies.
      */
-    public void invoke(){
-        
-        //If this is the first timestep, do not perform the TD error update. Instead, just select an action and invoke.
-        if(this.firstTimestep){
+    public void enableRecurrentEncoder(int truncationSteps){
+        if(this.frozen){
+            throw new IllegalStateException("A frozen agent does not learn.");
+        }
 
-            //Get the current observation
-            this.obs = this.getObservation();
+        this.recurrentEncoder = new RecurrentEncoder(this.stateSize, this.numActions, this.observationSize, truncationSteps);
+        this.updateNetwork = this.recurrentEncoder.getNetwork();
+        this.encoderDObjdState = new float[this.stateSize];
 
-            //Run input update input vector through network to get the state
-            this.state = this.updateFunctionPredictFirstTimestep(obs);
+        this.bestUpdateParams = GCAgent.copyParams(this.updateNetwork);
+        this.firstTimestep = true;
 
-            //Select action from policy
-            float[] probVector = this.policyFunctionPredict(state);
-            this.prev_action = this.selectAction(probVector);
+        if(this.replayBuffer != null){
+            this.replayBuffer.clear();
+        }
+    }
 
-            if(prev_action == 1){
-                System.gc();
-            }
+    /**
+     * Enables experience replay. Every transition is stored in a ring buffer of the given capacity, and after each online step
+     * the agent performs replayRatio minibatch updates (on average) of batchSize transitions sampled from the buffer.
+     * A replayRatio of 0.25 means one minibatch every fourth invocation.
+     */
+    public void enableReplay(int capacity, int batchSize, float replayRatio){
+        if(this.frozen){
+            throw new IllegalStateException("A frozen agent does not learn.");
+        }
 
-            //Record the probability of the action being selected at the current state
-            this.probAction = probVector[this.prev_action];
+        if(batchSize <= 0 || replayRatio < 0){
+            throw new IllegalArgumentException("batchSize must be positive and replayRatio non-negative");
+        }
 
-            //Record the "confidence" level (maximum probability out of policy distribution)
-            this.meanConfidence.addSample(Math.max(this.probAction, 1 - this.probAction));
+        this.replayBuffer = new ReplayBuffer(capacity, this.stateSize);
+        this.replayBatchSize = batchSize;
+        this.replayRatio = replayRatio;
+        this.replayCredit = 0;
+
+        this.replayIndices = new int[batchSize];
+        this.replayStates = new float[batchSize * this.stateSize];
+        this.replayNextStates = new float[batchSize * this.stateSize];
+        this.replayTDErrors = new float[batchSize];
+        this.replayValueDObjdY = new float[batchSize];
+        this.replayPolicyDObjdY = new float[batchSize * this.numActions];
+        this.replayLogits = new float[this.numActions];
+    }
 
-            this.firstTimestep = false;
+    public void disableReplay(){
+        this.replayBuffer = null;
+        this.replayIndices = null;
+        this.replayStates = null;
+        this.replayNextStates = null;
+        this.replayTDErrors = null;
+        this.replayValueDObjdY = null;
+        this.replayPolicyDObjdY = null;
+        this.replayLogits = null;
+    }
 
-            this.prevObsTime = System.currentTimeMillis();
-        } else {
+    private void replay(){
+        this.replayCredit += this.replayRatio;
 
-            //Get the next observation
-            float[] nextObs = this.getObservation();
+        while(this.replayCredit >= 1f){
+            this.replayCredit -= 1f;
+            this.replayMinibatch();
+        }
+    }
 
-            //Get the new reward
-            long currentObsTime = System.currentTimeMillis();
-            long delta = currentObsTime - this.prevObsTime;
-            float deltaSeconds = ((float)delta) / 1000f;
-            this.prevObsTime = currentObsTime;
+    private void replayMinibatch(){
+        if(this.replayBuffer.size() < this.replayBatchSize){
+            return;
+        }
 
-            float reward = -(float)deltaSeconds;
-            this.meanReward.addSample(reward);
+        int batchSize = this.replayBatchSize;
 
-            //Get next state
-            float[] nextState = this.updateFunctionPredict(this.state, this.prev_action, nextObs);
-
-            //Get values
-            float nextValue = this.valueFunctionPredict(nextState);
-            float value = this.valueFunctionPredict(this.state);
-
-            //Calculate the TD error
-            float tdError = reward + (this.discountFactor * nextValue) - value;
-
-            //Adjust value function
-            //Backprop data should already be stored in the value function object since the last call to predict was on the "current" inputs
-            float[] dObjdY = new float[1];
-            dObjdY[0] = 1;
-            this.neuralNetworkGradient(this.valueNetwork, dObjdY);
-            this.applyGradients(this.valueNetwork, tdError * this.valueLR);
-
-            //Adjust the policy function
-            //Run the predict function to populate the backprop data in the function object
-            float[] policyOutput = this.neuralNetworkPredict(this.policyNetwork, this.state);
-            //System.out.println("Policy output: " + Arrays.toString(policyOutput));
-            dObjdY = this.softmaxdObjdX(policyOutput, this.prev_action);
-            //System.out.println("dObjdY: " + Arrays.toString(dObjdY));
-            this.neuralNetworkGradient(this.policyNetwork, dObjdY);
-            this.applyGradients(this.policyNetwork, tdError * this.policyLR);
-            
-            
-            //Select the next action
-            float[] probVector = this.policyFunctionPredict(nextState);
-            this.prev_action = this.selectAction(probVector);
+        //The gradient is summed over the batch, so scale it by 1/batchSize to move the parameters as far as one online step
+        float batchScale = 1f / batchSize;
 
-            if(this.prev_action == 1){
-                System.gc();
-            }
+        for(int b = 0; b < batchSize; b++){
+            int index = this.replayBuffer.sampleIndex();
+            this.replayIndices[b] = index;
 
-            //Set the "current" observation, action probability, and state fields to the past fields
-            this.obs = nextObs;
-            this.probAction = probVector[this.prev_action];
-            this.state = nextState;
+            this.replayBuffer.getState(index, this.replayStates, b * this.stateSize);
+            this.replayBuffer.getNextState(index, this.replayNextStates, b * this.stateSize);
+        }
 
-            this.meanConfidence.addSample(Math.max(this.probAction, 1 - this.probAction));
+        //TD errors under the current value network. The next states go first, so the network keeps the activations of the states for the update.
+        float[] nextValues = this.neuralNetworkPredictBatch(this.valueNetwork, this.replayNextStates, batchSize);
+        for(int b = 0; b < batchSize; b++){
+            int index = this.replayIndices[b];
 
-            //System.out.println("Softmax: " + Arrays.toString(probVector));
+            this.replayTDErrors[b] = this.replayBuffer.getReward(index) + (this.replayBuffer.getDiscount(index) * nextValues[b]);
+        }
 
+        float[] values = this.neuralNetworkPredictBatch(this.valueNetwork, this.replayStates, batchSize);
+        for(int b = 0; b < batchSize; b++){
+            this.replayTDErrors[b] -= values[b];
+            this.replayValueDObjdY[b] = this.replayTDErrors[b];
         }
 
+        this.neuralNetworkUpdateBatch(this.valueNetwork, this.valueOptimizer, this.replayValueDObjdY, batchSize, this.valueLR, batchScale);
 
-        //Determine if update function should be adjusted
-        if(this.meanReward.getNumSamples() >= this.minUpdateInterval ){
-            if(this.meanReward.getMean() > this.bestMeanReward && this.meanConfidence.getMean() > this.confidenceStopThreshold){
-                //Current update params are better than previous, set variables
-                this.bestMeanReward = this.meanReward.getMean();
-                this.bestUpdateParams = GCAgent.copyParams(this.updateNetwork);
+        //The stored actions were chosen by an older policy, so weight each sample by the (clipped) probability ratio
+        float[] policyOutput = this.neuralNetworkPredictBatch(this.policyNetwork, this.replayStates, batchSize);
+        for(int b = 0; b < batchSize; b++){
+            int row = b * this.numActions;
+            int action = this.replayBuffer.getAction(this.replayIndices[b]);
+            float actionProb = this.replayBuffer.getActionProb(this.replayIndices[b]);
 
-                            //Create new update function
-                this.setParameters(this.updateNetwork, this.bestUpdateParams);
-                this.randomOffsetParams(this.updateNetwork, this.updateStepSize);
-                this.firstTimestep = true;
-            }
-            
-            System.out.println("Best mean reward: " + this.bestMeanReward);
-            System.out.println("Confidence: " + this.meanConfidence.getMean());
-            
+            System.arraycopy(policyOutput, row, this.replayLogits, 0, this.numActions);
+            this.softmax(this.replayLogits, this.probVector);
+            float ratio = Math.min(1f, this.probVector[action] / Math.max(actionProb, 1e-6f));
 
-            this.meanReward.reset();
-            this.meanConfidence.reset();
-            
+            this.softmaxdObjdX(this.replayLogits, action, this.policyDObjdY);
+            for(int i = 0; i < this.numActions; i++){
+                this.replayPolicyDObjdY[row + i] = this.policyDObjdY[i] * this.replayTDErrors[b] * ratio;
+            }
         }
 
+        this.neuralNetworkUpdateBatch(this.policyNetwork, this.policyOptimizer, this.replayPolicyDObjdY, batchSize, this.policyLR, batchScale);
     }
 
 
@@ -224,16 +1241,11 @@ public class GCAgent{
         this.policyNetwork.add(new DenseTanh(hiddenLayerSize, hiddenLayerSize));
 
         //Linear dense layer for the output
-        this.policyNetwork.add(new DenseLinear(2, hiddenLayerSize));
+        this.policyNetwork.add(new DenseLinear(this.numActions, hiddenLayerSize));
 
         //set the last layer weights to equal zero so that the starting policy is uniform random
         DenseLinear lastLayer = (DenseLinear)this.policyNetwork.get(this.policyNetwork.size() - 1);
-        float[][] weight = lastLayer.parameters.get(0);
-        for(int r = 0; r < weight.length; r++){
-            for(int c = 0; c < weight[r].length; c++){
-                weight[r][c] = 0f;
-            }
-        }
+        lastLayer.fillTensor(0, 0f);
     }
 
     private void createValueNetwork(int hiddenLayerSize){
@@ -247,25 +1259,35 @@ public class GCAgent{
     private void createUpdateNetwork(int hiddenLayerSize){
         this.updateNetwork = new ArrayList<Layer>();
 
-        this.updateNetwork.add(new DenseTanh(hiddenLayerSize, this.stateSize + this.observationSize + 2));
+        this.updateNetwork.add(new DenseTanh(hiddenLayerSize, this.stateSize + this.observationSize + this.numActions));
         this.updateNetwork.add(new DenseTanh(hiddenLayerSize, hiddenLayerSize));
         this.updateNetwork.add(new DenseTanh(this.stateSize, hiddenLayerSize));
     }
 
     private float[] updateFunctionPredict(float[] prevState, int prevAction, float[] obs){
-        float[] inputVector = this.getUpdateInputVector(prevState, prevAction, obs);
+        if(this.recurrentEncoder != null){
+            return this.recurrentEncoder.encode(prevAction, obs);
+        }
 
-        return this.neuralNetworkPredict(this.updateNetwork, inputVector);
+        this.getUpdateInputVector(prevState, prevAction, obs, this.updateInputVector);
+
+        return this.neuralNetworkPredict(this.updateNetwork, this.updateInputVector);
     }
 
     private float[] updateFunctionPredictFirstTimestep(float[] firstObs){
-        float[] inputVector = new float[this.stateSize + 2 + firstObs.length];
+        if(this.recurrentEncoder != null){
+            this.recurrentEncoder.reset();
+
+            return this.recurrentEncoder.encode(-1, firstObs);
+        }
 
-        for(int i = 0; i < this.stateSize + 2; i++){
+        float[] inputVector = this.updateInputVector;
+
+        for(int i = 0; i < this.stateSize + this.numActions; i++){
             inputVector[i] = -1;
         }
 
-        int offset = this.stateSize + 2;
+        int offset = this.stateSize + this.numActions;
         for(int i = 0; i < firstObs.length; i++){
             inputVector[i + offset] = firstObs[i];
         }
@@ -277,12 +1299,11 @@ public class GCAgent{
         return this.neuralNetworkPredict(this.valueNetwork, state)[0];
     }
 
-    private float[] policyFunctionPredict(float[] state){
-        return this.softmax(this.neuralNetworkPredict(this.policyNetwork, state));
+    private void policyFunctionPredict(float[] state, float[] probVector){
+        this.softmax(this.neuralNetworkPredict(this.policyNetwork, state), probVector);
     }
 
-    private float[] getUpdateInputVector(float[] prevState, int prevAction, float[] obs){
-        float[] inputVector = new float[prevState.length + 2 + obs.length];
+    private void getUpdateInputVector(float[] prevState, int prevAction, float[] obs, float[] inputVector){
 
         //Copy over prevState
         for(int i = 0; i < prevState.length; i++){
@@ -290,13 +1311,14 @@ public class GCAgent{
         }
 
         //One hot encode the previous action
+        for(int i = 0; i < this.numActions; i++){
+            inputVector[prevState.length + i] = 0;
+        }
         inputVector[prevState.length + prevAction] = 1;
 
         for(int i = 0; i < obs.length; i++){
-            inputVector[prevState.length + 2 + i] = obs[i];
+            inputVector[prevState.length + this.numActions + i] = obs[i];
         }
-
-        return inputVector;
     }
 
 
@@ -315,27 +1337,63 @@ public class GCAgent{
         return neuralNetwork.get(neuralNetwork.size() - 1).outputVector;
     }
 
-    private void neuralNetworkGradient(ArrayList<Layer> neuralNetwork, float[] dObjdY){
-        Layer last = neuralNetwork.get(neuralNetwork.size() - 1);
-        GCAgent.copyArrayContents(dObjdY, last.dObjectivedY);
-        last.backwardPass();
+    /**
+     * Forward pass of batchSize row major inputs. Returns the last layer's batch output buffer, which the next batched call overwrites.
+     */
+    private float[] neuralNetworkPredictBatch(ArrayList<Layer> neuralNetwork, float[] input, int batchSize){
+        float[] x = input;
 
-        for(int i = neuralNetwork.size() - 2; i >= 0; i--){
-            GCAgent.copyArrayContents(neuralNetwork.get(i + 1).dObjectivedX, neuralNetwork.get(i).dObjectivedY);
+        for(int i = 0; i < neuralNetwork.size(); i++){
+            x = neuralNetwork.get(i).forwardBatch(x, batchSize);
+        }
+
+        return x;
+    }
+
+    /**
+     * Backpropagates the batch of the last neuralNetworkPredictBatch() and lets the optimizer apply gradScale times the summed gradient.
+     */
+    private void neuralNetworkUpdateBatch(ArrayList<Layer> neuralNetwork, Optimizer optimizer, float[] dObjdY, int batchSize, float learningRate, float gradScale){
+        float[] d = dObjdY;
 
-            neuralNetwork.get(i).backwardPass();
+        for(int i = neuralNetwork.size() - 1; i >= 0; i--){
+            d = neuralNetwork.get(i).backwardBatch(d, batchSize);
         }
+
+        optimizer.step(learningRate, gradScale);
     }
 
+    /**
+     * Backpropagates dObjdY through the network and lets the optimizer apply gradScale times the gradient. Plain SGD is fused into
+     * the backward pass layer by layer (see Layer.backwardAndApply()), so no gradient is stored. Each layer passes on dObjectivedX
+     * of its old parameters, so the result is the same as computing the whole gradient first and applying it afterwards.
+     */
+    private void neuralNetworkUpdate(ArrayList<Layer> neuralNetwork, Optimizer optimizer, float[] dObjdY, float learningRate, float gradScale){
+        boolean fused = optimizer.isFusable();
+        float scalar = learningRate * gradScale;
+
+        Layer last = neuralNetwork.get(neuralNetwork.size() - 1);
+        GCAgent.copyArrayContents(dObjdY, last.dObjectivedY);
 
-    private void applyGradients(ArrayList<Layer> neuralNetwork, float scalar){
+        if(fused){
+            last.backwardAndApply(scalar);
+        } else {
+            last.backwardPass();
+        }
 
-        for(int i = 0; i < neuralNetwork.size(); i++){
-            Layer l = neuralNetwork.get(i);
+        for(int i = neuralNetwork.size() - 2; i >= 0; i--){
+            GCAgent.copyArrayContents(neuralNetwork.get(i + 1).dObjectivedX, neuralNetwork.get(i).dObjectivedY);
 
-            l.applyGradient(scalar);
+            if(fused){
+                neuralNetwork.get(i).backwardAndApply(scalar);
+            } else {
+                neuralNetwork.get(i).backwardPass();
+            }
         }
 
+        if(!fused){
+            optimizer.step(learningRate, gradScale);
+        }
     }
 
     public static void copyArrayContents(float[] src, float[] dest){
@@ -348,24 +1406,39 @@ public class GCAgent{
     public float[] softmax(float[] x){
         float[] y = new float[x.length];
 
+        this.softmax(x, y);
+
+        return y;
+    }
+
+    /**
+     * Writes the softmax of x into y, which must be at least as long as x.
+     */
+    public void softmax(float[] x, float[] y){
         float sum = 0f;
 
         for(int i = 0; i < x.length; i++){
             sum += (float)Math.exp((double)x[i]);
         }
 
-        for(int i = 0; i < y.length; i++){
+        for(int i = 0; i < x.length; i++){
             y[i] = (float)Math.exp((double)x[i]) / sum;
         }
-
-
-        return y;
     }
 
 
     public float[] softmaxdObjdX(float[] x, int index){
         float[] dObjdX = new float[x.length];
 
+        this.softmaxdObjdX(x, index, dObjdX);
+
+        return dObjdX;
+    }
+
+    /**
+     * Writes the derivative of softmax(x)[index] with respect to x into dObjdX, which must be at least as long as x.
+     */
+    public void softmaxdObjdX(float[] x, int index, float[] dObjdX){
         float sum = 0.000001f;
 
         for(int i = 0; i < x.length; i++){
@@ -390,11 +1463,19 @@ public class GCAgent{
                 sum += (float)Math.exp((double)x[i]);
             }
         }
-    
-        return dObjdX;
     }
 
 
+    private static float max(float[] array){
+        float max = array[0];
+
+        for(int i = 1; i < array.length; i++){
+            max = Math.max(max, array[i]);
+        }
+
+        return max;
+    }
+
     private int selectAction(float[] probVector){
         float r = (float)Math.random();
 
@@ -411,9 +1492,7 @@ public class GCAgent{
     }
 
 
-    private float[] getObservation(){
-        float[] observation = new float[12];
-
+    private void getObservation(float[] observation){
         Runtime r = Runtime.getRuntime();
 
         long totalMemory = r.totalMemory();
@@ -421,10 +1500,10 @@ public class GCAgent{
         long maxMemory = r.maxMemory();
 
         //Index 0: Amount of memory used (in GB)
-        observation[0] = (float)((totalMemory) / (1024.0 * 1024 * 1024));
+        observation[0] = totalMemory / GCAgent.BYTES_PER_GB;
 
         //Index 1: Max memory (in GB)
-        observation[1] = (float)((maxMemory) / (1024.0 * 1024 * 1024));
+        observation[1] = maxMemory / GCAgent.BYTES_PER_GB;
 
         //Index 2: Proportion of memory used
         observation[2] = (float)(1.0 - (((double)(freeMemory)) / totalMemory));
@@ -432,42 +1511,284 @@ public class GCAgent{
         //Index 3: Available processors (divided by 128 to keep value small)
         observation[3] = r.availableProcessors() / 128f;
 
-        //Next indexes are based on the mxbean information.
-        MemoryMXBean mem = ManagementFactory.getMemoryMXBean();
-
-        //Look at heap information
-        MemoryUsage heap = mem.getHeapMemoryUsage();
+        //Next indexes describe the heap. getHeapMemoryUsage() allocates a MemoryUsage on every call,
+        //so committed/used come from Runtime (the same figures) and init/max were read once at construction.
 
         //Index 4: initial heap size
-        observation[4] = (float)((heap.getInit()) / (1024.0 * 1024 * 1024));
+        observation[4] = this.heapInit;
 
         //Index 5: heap committed memory
-        observation[5] = (float)((heap.getCommitted()) / (1024.0 * 1024 * 1024));
+        observation[5] = totalMemory / GCAgent.BYTES_PER_GB;
 
         //Index 6: heap used memory
-        observation[6] = (float)((heap.getUsed()) / (1024.0 * 1024 * 1024));
+        observation[6] = (totalMemory - freeMemory) / GCAgent.BYTES_PER_GB;
 
         //Index 7: heap max memory
-        observation[7] = (float)((heap.getMax()) / (1024.0 * 1024 * 1024));
+        observation[7] = this.heapMax;
+
+
+        //Indexes 8-11: non-heap init, committed, used and max (refreshed once per update interval)
+        for(int i = 0; i < this.nonHeapUsage.length; i++){
+            observation[8 + i] = this.nonHeapUsage[i];
+        }
 
+        //Indexes 12+: young/old occupancy, time since the last young/full collection and recent pauses
+        this.gcObserver.getObservation(observation, 12);
+    }
 
+    private void refreshNonHeapUsage(){
         //Look at non-heap information (don't know if it will be useful to the agent)
-        MemoryUsage nonHeap = mem.getNonHeapMemoryUsage();
+        MemoryUsage nonHeap = ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage();
+
+        this.nonHeapUsage[0] = nonHeap.getInit() / GCAgent.BYTES_PER_GB;
+        this.nonHeapUsage[1] = nonHeap.getCommitted() / GCAgent.BYTES_PER_GB;
+        this.nonHeapUsage[2] = nonHeap.getUsed() / GCAgent.BYTES_PER_GB;
+        this.nonHeapUsage[3] = nonHeap.getMax() / GCAgent.BYTES_PER_GB;
+    }
+
+    /**
+     * Writes the policy, value and update networks, the best update parameters and the hyperparameters to path.
+     * The file is written next to path and moved into place, so a crash never leaves a truncated checkpoint behind.
+     *
+     * Format (little endian, version 4):
+     * int magic, int version,
+     * int stateSize, observationSize, hiddenPolicy, hiddenValue, hiddenUpdate, minUpdateInterval,
+     * float valueLR, policyLR, updateStepSize, confidenceStopThreshold, discountFactor, bestMeanReward, rewardScale,
+     * int rewardMode,
+     * int cadence unit (0 millis, 1 allocated bytes), long cadence reference nanos, int interval count, long intervals (version 2 and later),
+     * int hidden layer activation (version 3 and later),
+     * int recurrent encoder truncation steps, 0 for the dense update network (version 4 and later),
+     * then the policy, value, update and best update parameters, each as int count followed by (int rows, int cols, rows * cols floats) per matrix.
+     */
+    public void saveCheckpoint(String path) throws IOException{
+        if(this.frozen){
+            throw new IllegalStateException("A frozen agent has no value network to save.");
+        }
+
+        float[] policyParams = GCAgent.copyParams(this.policyNetwork);
+        float[] valueParams = GCAgent.copyParams(this.valueNetwork);
+        float[] updateParams = GCAgent.copyParams(this.updateNetwork);
+
+        int size = 4 * 8 + 4 * 7 + 4;
+        size += 4 + 8 + 4 + 8 * this.cadence.size();
+        size += 4 + 4;
+        size += GCAgent.serializedSize(this.policyNetwork) + GCAgent.serializedSize(this.valueNetwork);
+        size += 2 * GCAgent.serializedSize(this.updateNetwork);
+
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+
+        buffer.putInt(GCAgent.CHECKPOINT_MAGIC);
+        buffer.putInt(GCAgent.CHECKPOINT_VERSION);
+
+        buffer.putInt(this.stateSize);
+        buffer.putInt(this.observationSize);
+        buffer.putInt(this.policyNetwork.get(0).outputVector.length);
+        buffer.putInt(this.valueNetwork.get(0).outputVector.length);
+        buffer.putInt(this.updateNetwork.get(0).outputVector.length);
+        buffer.putInt(this.minUpdateInterval);
+
+        buffer.putFloat(this.valueLR);
+        buffer.putFloat(this.policyLR);
+        buffer.putFloat(this.updateStepSize);
+        buffer.putFloat(this.confidenceStopThreshold);
+        buffer.putFloat(this.discountFactor);
+        buffer.putFloat(this.bestMeanReward);
+        buffer.putFloat(this.rewardScale);
+
+        buffer.putInt(this.rewardMode.ordinal());
+
+        buffer.putInt(this.cadence.isAllocatedBytes() ? 1 : 0);
+        buffer.putLong(this.cadence.getReferenceNanos());
+        buffer.putInt(this.cadence.size());
+        for(int i = 0; i < this.cadence.size(); i++){
+            buffer.putLong(this.cadence.getInterval(i));
+        }
 
-        //Index 8: initial heap size
-        observation[8] = (float)((nonHeap.getInit()) / (1024.0 * 1024 * 1024));
+        buffer.putInt(this.activation.ordinal());
+        buffer.putInt(this.recurrentEncoder != null ? this.recurrentEncoder.getTruncationSteps() : 0);
 
-        //Index 9: heap committed memory
-        observation[9] = (float)((nonHeap.getCommitted()) / (1024.0 * 1024 * 1024));
+        GCAgent.writeParams(buffer, this.policyNetwork, policyParams);
+        GCAgent.writeParams(buffer, this.valueNetwork, valueParams);
+        GCAgent.writeParams(buffer, this.updateNetwork, updateParams);
+        GCAgent.writeParams(buffer, this.updateNetwork, this.bestUpdateParams);
 
-        //Index 10: heap used memory
-        observation[10] = (float)((nonHeap.getUsed()) / (1024.0 * 1024 * 1024));
+        buffer.flip();
 
-        //Index 11: heap max memory
-        observation[11] = (float)((nonHeap.getMax()) / (1024.0 * 1024 * 1024));
-        
+        Path target = Paths.get(path).toAbsolutePath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+
+        try(FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+            while(buffer.hasRemaining()){
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * saveCheckpoint() for an agent that other threads may be invoking: waits until no step is running (see maybeInvoke())
+     * and holds the step gate while saving, so the parameters are never written mid-update.
+     */
+    public void saveCheckpointExclusive(String path) throws IOException{
+        while(!this.stepGate.compareAndSet(false, true)){
+            Thread.yield();
+        }
+
+        try{
+            this.saveCheckpoint(path);
+        } finally {
+            this.stepGate.set(false);
+        }
+    }
+
+    /**
+     * Creates an agent from a checkpoint written by saveCheckpoint(). The file is memory mapped and read in bulk,
+     * and the agent resumes with the saved weights instead of starting from random ones.
+     */
+    public static GCAgent loadCheckpoint(String path) throws IOException{
+        try(FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)){
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            ByteBuffer buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+            if(buffer.remaining() < 8 || buffer.getInt() != GCAgent.CHECKPOINT_MAGIC){
+                throw new IOException("Not a GCAgent checkpoint: " + path);
+            }
+
+            int version = buffer.getInt();
+            if(version < 1 || version > GCAgent.CHECKPOINT_VERSION){
+                throw new IOException("Unsupported checkpoint version " + version + " in " + path);
+            }
+
+            int stateSize = buffer.getInt();
+            int observationSize = buffer.getInt();
+            int hiddenPolicy = buffer.getInt();
+            int hiddenValue = buffer.getInt();
+            int hiddenUpdate = buffer.getInt();
+            int minUpdateInterval = buffer.getInt();
+
+            if(observationSize != GCAgent.OBSERVATION_SIZE){
+                throw new IOException("Checkpoint observation size " + observationSize + " does not match " + GCAgent.OBSERVATION_SIZE);
+            }
+
+            float valueLR = buffer.getFloat();
+            float policyLR = buffer.getFloat();
+            float updateStepSize = buffer.getFloat();
+            float confidenceStopThreshold = buffer.getFloat();
+            float discountFactor = buffer.getFloat();
+            float bestMeanReward = buffer.getFloat();
+            float rewardScale = buffer.getFloat();
+
+            int rewardMode = buffer.getInt();
+
+            //Version 1 checkpoints predate the cadence and always decided on every invocation
+            Cadence cadence = Cadence.none();
+            if(version >= 2){
+                boolean allocatedBytes = buffer.getInt() == 1;
+                long referenceNanos = buffer.getLong();
+                long[] intervals = new long[buffer.getInt()];
+                for(int i = 0; i < intervals.length; i++){
+                    intervals[i] = buffer.getLong();
+                }
+
+                cadence = Cadence.create(intervals, allocatedBytes, referenceNanos);
+            }
 
-        return observation;
+            //Older checkpoints were trained with tanh everywhere
+            Activation activation = version >= 3 ? Activation.values()[buffer.getInt()] : Activation.TANH;
+            int truncationSteps = version >= 4 ? buffer.getInt() : 0;
+
+            GCAgent agent = new GCAgent(stateSize, hiddenPolicy, hiddenValue, hiddenUpdate, valueLR, policyLR, updateStepSize, confidenceStopThreshold, discountFactor, minUpdateInterval, cadence);
+
+            agent.bestMeanReward = bestMeanReward;
+            agent.rewardScale = rewardScale;
+            agent.rewardMode = RewardMode.values()[rewardMode];
+            agent.setActivation(activation);
+
+            if(truncationSteps > 0){
+                agent.enableRecurrentEncoder(truncationSteps);
+            }
+
+            GCAgent.setParameters(agent.policyNetwork, GCAgent.readParams(buffer, agent.policyNetwork, new float[GCAgent.countParams(agent.policyNetwork)]));
+            GCAgent.setParameters(agent.valueNetwork, GCAgent.readParams(buffer, agent.valueNetwork, new float[GCAgent.countParams(agent.valueNetwork)]));
+            GCAgent.setParameters(agent.updateNetwork, GCAgent.readParams(buffer, agent.updateNetwork, new float[GCAgent.countParams(agent.updateNetwork)]));
+            GCAgent.readParams(buffer, agent.updateNetwork, agent.bestUpdateParams);
+
+            return agent;
+        } catch(RuntimeException exception){
+            //Buffer underflow, bad enum ordinal etc. all mean the file is corrupt
+            throw new IOException("Corrupt GCAgent checkpoint: " + path, exception);
+        }
+    }
+
+    private static int serializedSize(ArrayList<Layer> network){
+        int size = 4;
+
+        for(Layer l : network){
+            size += 8 * l.getNumTensors() + 4 * l.getNumParameters();
+        }
+
+        return size;
+    }
+
+    /**
+     * Writes params, a copyParams() snapshot of network, as a tensor count followed by (rows, cols, values) per tensor.
+     */
+    private static void writeParams(ByteBuffer buffer, ArrayList<Layer> network, float[] params){
+        int count = 0;
+        for(Layer l : network){
+            count += l.getNumTensors();
+        }
+        buffer.putInt(count);
+
+        int k = 0;
+        for(Layer l : network){
+            for(int t = 0; t < l.getNumTensors(); t++){
+                int rows = l.getTensorRows(t);
+                int cols = l.getTensorCols(t);
+
+                buffer.putInt(rows);
+                buffer.putInt(cols);
+
+                buffer.asFloatBuffer().put(params, k, rows * cols);
+                buffer.position(buffer.position() + 4 * rows * cols);
+                k += rows * cols;
+            }
+        }
+    }
+
+    /**
+     * Reads a snapshot of network written by writeParams() into params. The tensor shapes in the buffer must match the network.
+     */
+    private static float[] readParams(ByteBuffer buffer, ArrayList<Layer> network, float[] params) throws IOException{
+        int expected = 0;
+        for(Layer l : network){
+            expected += l.getNumTensors();
+        }
+
+        int count = buffer.getInt();
+        if(count != expected){
+            throw new IOException("Checkpoint has " + count + " parameter matrices, expected " + expected);
+        }
+
+        int k = 0;
+        for(Layer l : network){
+            for(int t = 0; t < l.getNumTensors(); t++){
+                int rows = buffer.getInt();
+                int cols = buffer.getInt();
+
+                if(rows != l.getTensorRows(t) || cols != l.getTensorCols(t)){
+                    throw new IOException("Checkpoint matrix is " + rows + "x" + cols + ", expected " + l.getTensorRows(t) + "x" + l.getTensorCols(t));
+                }
+
+                buffer.asFloatBuffer().get(params, k, rows * cols);
+                buffer.position(buffer.position() + 4 * rows * cols);
+                k += rows * cols;
+            }
+        }
+
+        return params;
     }
 
     public static void printArray(float[] array){
@@ -480,54 +1801,70 @@ public class GCAgent{
         System.out.print(array[array.length - 1] + "]\n");
     }
 
-    private static ArrayList<float[][]> copyParams(ArrayList<Layer> network){
-        ArrayList<float[][]> params = new ArrayList<float[][]>();
+    static int countParams(ArrayList<Layer> network){
+        int count = 0;
 
-        for(int i = 0; i < network.size(); i++){
-            for(int j = 0; j < network.get(i).parameters.size(); j++){
-                params.add(GCAgent.copy(network.get(i).parameters.get(j)));
-            }
+        for(Layer l : network){
+            count += l.getNumParameters();
         }
 
+        return count;
+    }
+
+    /**
+     * Snapshot of all parameters of the network, layer after layer, in one array.
+     */
+    static float[] copyParams(ArrayList<Layer> network){
+        float[] params = new float[GCAgent.countParams(network)];
+
+        GCAgent.copyParams(network, params);
+
         return params;
     }
 
-    private static float[][] copy(float[][] matrix){
-        float[][] result = new float[matrix.length][matrix[0].length];
+    /**
+     * Copies the network parameters into params, which must hold countParams(network) values.
+     */
+    static void copyParams(ArrayList<Layer> network, float[] params){
+        int k = 0;
 
-        for(int r = 0; r < result.length; r++){
-            for(int c = 0; c < result[0].length; c++){
-                result[r][c] = matrix[r][c];
-            }
+        for(Layer l : network){
+            System.arraycopy(l.parameters, 0, params, k, l.parameters.length);
+            k += l.parameters.length;
         }
-
-        return result;
     }
 
-    private void setParameters(ArrayList<Layer> network, ArrayList<float[][]> parameters){
+    /**
+     * Restores a copyParams() snapshot into the network.
+     */
+    static void setParameters(ArrayList<Layer> network, float[] params){
         int k = 0;
-        for(int i = 0; i < network.size(); i++){
-            Layer l = (Layer)network.get(i);
 
-            for(int j = 0; j < l.parameters.size(); j++){
-                l.parameters.set(j, GCAgent.copy(parameters.get(k)));
-                k++;
-            }
+        for(Layer l : network){
+            System.arraycopy(params, k, l.parameters, 0, l.parameters.length);
+            k += l.parameters.length;
         }
     }
 
-    private void randomOffsetParams(ArrayList<Layer> network, float maxOffset){
-        for(int i = 0; i < network.size(); i++){
-            Layer l = network.get(i);
+    /**
+     * Independent copy of the network, layer after layer.
+     */
+    static ArrayList<Layer> duplicateNetwork(ArrayList<Layer> network){
+        ArrayList<Layer> copy = new ArrayList<Layer>();
 
-            for(int j = 0; j < l.parameters.size(); j++){
-                float[][] matrix = l.parameters.get(j);
+        for(Layer l : network){
+            copy.add(l.duplicate());
+        }
 
-                for(int r = 0; r < matrix.length; r++){
-                    for(int c = 0; c < matrix[0].length; c++){
-                        matrix[r][c] += Utility.getRandom(-maxOffset, maxOffset);
-                    }
-                }
+        return copy;
+    }
+
+    private void randomOffsetParams(ArrayList<Layer> network, float maxOffset){
+        for(Layer l : network){
+            float[] params = l.parameters;
+
+            for(int i = 0; i < params.length; i++){
+                params[i] += Utility.getRandom(-maxOffset, maxOffset);
             }
         }
     }
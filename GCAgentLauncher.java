@@ -0,0 +1,389 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.instrument.Instrumentation;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * java.lang.instrument entry points that run a background GCAgent inside any JVM without code changes.
+ *
+ * Build the agent jar with the manifest in this directory (the second javac adds the optional vector kernels, see Kernels):
+ *     javac -d out *.java
+ *     javac --add-modules jdk.incubator.vector -cp out -d out vector/VectorKernels.java
+ *     jar cfm rl_gc.jar agent-manifest.mf -C out .
+ * or run mvn -B package, which builds the same jar as agent/target/rl_gc.jar (and the JMH benchmarks, see jmh/pom.xml).
+ *
+ * Start with the application:      java -javaagent:rl_gc.jar=checkpoint=/var/lib/app/gc.ckpt,periodMillis=50 -jar app.jar
+ * Attach to a running process:     java -jar rl_gc.jar <pid> checkpoint=/var/lib/app/gc.ckpt,periodMillis=50
+ * The vector kernels are only used when the application JVM runs with --add-modules jdk.incubator.vector.
+ *
+ * Agent arguments are comma separated key=value pairs. Those marked (new) only shape a new agent: a loaded checkpoint keeps its own,
+ * and any given are reported on stderr as ignored, so the same arguments work before and after the first checkpoint.
+ *     stateSize, hiddenPolicy, hiddenValue, hiddenUpdate, valueLR, policyLR, updateStepSize, confidenceStopThreshold,
+ *     discountFactor, minUpdateInterval    (new) hyperparameters (defaults match new GCAgent())
+ *     cadenceMillis=0/10/100               (new) waits the policy may choose between decisions (default: decide every period)
+ *     checkpoint=path                      load the agent from path if it exists, and save it there periodically and at exit;
+ *                                          a file that cannot be read is moved to path.corrupt before the first save
+ *     checkpointSeconds=300                how often to save the checkpoint
+ *     periodMillis=100                     background invocation period
+ *     frozen=true                          run the checkpoint for inference only; the agent does not start unless it loads
+ *     quantize=INT8                        frozen only: quantize the networks (see Quantization) after calibrationSteps decisions
+ *     calibrationSteps=1000                decisions recorded in float to calibrate the quantization
+ *     rewardMode=MAX_PAUSE                 (new) TOTAL_PAUSE (default) or MAX_PAUSE; STEP_TIME and THROUGHPUT count the application's
+ *                                          GCAgent.reportWork() calls, which an agent started this way never receives
+ *     recurrentEncoder=16                  (new) LSTM state encoder trained over the last 16 steps (use a small stateSize)
+ *     activation=FAST_TANH                 hidden layer Activation, overriding the checkpoint's (default TANH)
+ *     optimizer=adam                       sgd, momentum, rmsprop or adam for the value and policy networks (see Optimizer.forName())
+ *     maxGradientNorm=1                    clip the gradient norm of each network (default 0: no clipping)
+ *     budget=0.005                         CPU overhead budget (see GCAgent.setOverheadBudget())
+ *     minGCIntervalMillis=100              coalescing window for explicit collections (0 only coalesces overlapping requests)
+ *     parallelism=2                        threads for the kernels of wide layers (see ParallelLoop)
+ * An unknown key or an invalid value is reported on stderr and the JVM runs on without the agent.
+ */
+public class GCAgentLauncher{
+
+    private static final Set<String> KEYS = new HashSet<String>(Arrays.asList(
+        "stateSize", "hiddenPolicy", "hiddenValue", "hiddenUpdate", "valueLR", "policyLR", "updateStepSize", "confidenceStopThreshold",
+        "discountFactor", "minUpdateInterval", "cadenceMillis", "checkpoint", "checkpointSeconds", "periodMillis", "frozen", "quantize",
+        "calibrationSteps", "rewardMode", "recurrentEncoder", "activation", "optimizer", "maxGradientNorm", "budget",
+        "minGCIntervalMillis", "parallelism"));
+
+    //Hyperparameters that only shape a new agent; a checkpoint stores its own
+    private static final Set<String> NEW_AGENT_KEYS = new HashSet<String>(Arrays.asList(
+        "stateSize", "hiddenPolicy", "hiddenValue", "hiddenUpdate", "valueLR", "policyLR", "updateStepSize", "confidenceStopThreshold",
+        "discountFactor", "minUpdateInterval", "cadenceMillis", "rewardMode", "recurrentEncoder"));
+
+    private static GCAgent agent;
+
+    public static void premain(String args, Instrumentation instrumentation){
+        GCAgentLauncher.start(args);
+    }
+
+    public static void agentmain(String args, Instrumentation instrumentation){
+        GCAgentLauncher.start(args);
+    }
+
+    /**
+     * Dynamically attaches the jar this class was loaded from to a running JVM: GCAgentLauncher pid [agent arguments]
+     */
+    public static void main(String[] args) throws Exception{
+        if(args.length < 1){
+            System.err.println("Usage: java -jar rl_gc.jar <pid> [key=value,...]");
+            System.exit(1);
+        }
+
+        String jar = new File(GCAgentLauncher.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getAbsolutePath();
+
+        com.sun.tools.attach.VirtualMachine vm = com.sun.tools.attach.VirtualMachine.attach(args[0]);
+        try{
+            vm.loadAgent(jar, args.length > 1 ? args[1] : "");
+        } finally {
+            vm.detach();
+        }
+    }
+
+    private static synchronized void start(String args){
+        if(GCAgentLauncher.agent != null){
+            System.err.println("GCAgent is already running in this JVM.");
+            return;
+        }
+
+        //With -javaagent an exception escaping premain aborts the host JVM's startup, so a bad argument only costs the agent
+        try{
+            GCAgentLauncher.agent = GCAgentLauncher.createAndStart(args);
+        } catch(RuntimeException exception){
+            System.err.println("GCAgent not started: " + exception.getMessage());
+        }
+    }
+
+    /**
+     * Parses and checks every argument, then loads or creates the agent and starts it. Nothing is started when an argument is invalid.
+     */
+    private static GCAgent createAndStart(String args){
+        Map<String, String> options = GCAgentLauncher.parseArgs(args);
+
+        //Validate everything before anything global changes or a thread starts
+        Integer parallelism = options.containsKey("parallelism") ? GCAgentLauncher.getInt(options, "parallelism", 0) : null;
+        GCAgentLauncher.require(parallelism == null || parallelism > 0, "parallelism must be positive");
+
+        String checkpoint = options.get("checkpoint");
+        boolean checkpointExists = checkpoint != null && new File(checkpoint).exists();
+        boolean frozen = GCAgentLauncher.getBoolean(options, "frozen", false);
+        GCAgentLauncher.require(!frozen || checkpointExists, "frozen=true needs an existing checkpoint");
+
+        int stateSize = GCAgentLauncher.getInt(options, "stateSize", 200);
+        int hiddenPolicy = GCAgentLauncher.getInt(options, "hiddenPolicy", 128);
+        int hiddenValue = GCAgentLauncher.getInt(options, "hiddenValue", 128);
+        int hiddenUpdate = GCAgentLauncher.getInt(options, "hiddenUpdate", 128);
+        GCAgentLauncher.require(stateSize > 0 && hiddenPolicy > 0 && hiddenValue > 0 && hiddenUpdate > 0, "layer sizes must be positive");
+
+        float valueLR = GCAgentLauncher.getFloat(options, "valueLR", 0.01f);
+        float policyLR = GCAgentLauncher.getFloat(options, "policyLR", 0.001f);
+        float updateStepSize = GCAgentLauncher.getFloat(options, "updateStepSize", 0.001f);
+        float confidenceStopThreshold = GCAgentLauncher.getFloat(options, "confidenceStopThreshold", 0.95f);
+        float discountFactor = GCAgentLauncher.getFloat(options, "discountFactor", 0.9999f);
+        int minUpdateInterval = GCAgentLauncher.getInt(options, "minUpdateInterval", 10000);
+        GCAgentLauncher.require(minUpdateInterval > 0, "minUpdateInterval must be positive");
+        Cadence cadence = GCAgentLauncher.getCadence(options);
+
+        RewardMode rewardMode = GCAgentLauncher.getEnum(options, "rewardMode", RewardMode.class);
+        if(rewardMode == null){
+            rewardMode = RewardMode.TOTAL_PAUSE;
+        }
+        GCAgentLauncher.require(!GCAgentLauncher.needsReportedWork(rewardMode), "rewardMode " + rewardMode + " needs reportWork() calls from the application; use TOTAL_PAUSE or MAX_PAUSE");
+        Activation activation = GCAgentLauncher.getEnum(options, "activation", Activation.class);
+        Quantization quantization = GCAgentLauncher.getEnum(options, "quantize", Quantization.class);
+        GCAgentLauncher.require(quantization == null || frozen, "quantize needs frozen=true");
+
+        int truncationSteps = GCAgentLauncher.getInt(options, "recurrentEncoder", 0);
+        GCAgentLauncher.require(truncationSteps >= 0, "recurrentEncoder must not be negative");
+
+        int calibrationSteps = GCAgentLauncher.getInt(options, "calibrationSteps", 1000);
+        GCAgentLauncher.require(calibrationSteps > 0, "calibrationSteps must be positive");
+
+        Optimizer valueOptimizer = null;
+        Optimizer policyOptimizer = null;
+        if(options.containsKey("optimizer") || options.containsKey("maxGradientNorm")){
+            String name = options.getOrDefault("optimizer", "sgd");
+            valueOptimizer = Optimizer.forName(name);
+            policyOptimizer = Optimizer.forName(name);
+
+            float maxGradientNorm = GCAgentLauncher.getFloat(options, "maxGradientNorm", 0f);
+            valueOptimizer.setGradientClipping(maxGradientNorm);
+            policyOptimizer.setGradientClipping(maxGradientNorm);
+        }
+
+        float budget = GCAgentLauncher.getFloat(options, "budget", 0f);
+        GCAgentLauncher.require(budget >= 0 && budget < 1, "budget must be in [0, 1)");
+
+        int minGCIntervalMillis = GCAgentLauncher.getInt(options, "minGCIntervalMillis", (int)GCAgent.DEFAULT_MIN_GC_INTERVAL_MILLIS);
+        GCAgentLauncher.require(minGCIntervalMillis >= 0, "minGCIntervalMillis must not be negative");
+
+        int periodMillis = GCAgentLauncher.getInt(options, "periodMillis", 100);
+        GCAgentLauncher.require(periodMillis > 0, "periodMillis must be positive");
+
+        int checkpointSeconds = GCAgentLauncher.getInt(options, "checkpointSeconds", 300);
+        GCAgentLauncher.require(checkpointSeconds > 0, "checkpointSeconds must be positive");
+
+        if(parallelism != null){
+            ParallelLoop.setParallelism(parallelism);
+        }
+
+        GCAgent created = null;
+        if(checkpointExists){
+            try{
+                created = frozen ? GCAgent.loadFrozen(checkpoint) : GCAgent.loadCheckpoint(checkpoint);
+            } catch(IOException exception){
+                //A frozen agent never saves, so the file stays where it is
+                if(frozen){
+                    throw new IllegalStateException("Could not load GCAgent checkpoint for frozen=true: " + exception);
+                }
+
+                //Keep the unreadable file, the periodic saves would otherwise replace it with an untrained agent
+                String aside = checkpoint + ".corrupt";
+                try{
+                    Files.move(Paths.get(checkpoint), Paths.get(aside), StandardCopyOption.REPLACE_EXISTING);
+                } catch(IOException moveException){
+                    throw new IllegalStateException("Could not load GCAgent checkpoint (" + exception + ") nor move it to " + aside + " (" + moveException + ")");
+                }
+
+                System.err.println("Could not load GCAgent checkpoint, moved it to " + aside + " and starting from scratch.");
+                System.err.println(exception);
+            }
+        }
+
+        if(created != null){
+            Set<String> ignored = new HashSet<String>(options.keySet());
+            ignored.retainAll(GCAgentLauncher.NEW_AGENT_KEYS);
+
+            if(!ignored.isEmpty()){
+                System.err.println("GCAgent loaded from " + checkpoint + ", which keeps its own " + ignored + "; the arguments are ignored.");
+            }
+        } else {
+            created = new GCAgent(stateSize, hiddenPolicy, hiddenValue, hiddenUpdate, valueLR, policyLR, updateStepSize,
+                confidenceStopThreshold, discountFactor, minUpdateInterval, cadence);
+
+            created.setRewardMode(rewardMode);
+
+            if(truncationSteps > 0){
+                created.enableRecurrentEncoder(truncationSteps);
+            }
+        }
+
+        try{
+            //A checkpoint trained on a work based reward would go on learning from invocation jitter
+            if(!created.isFrozen() && GCAgentLauncher.needsReportedWork(created.getRewardMode())){
+                throw new IllegalArgumentException("the checkpoint uses rewardMode " + created.getRewardMode()
+                    + ", which needs reportWork() calls from the application; run it with frozen=true");
+            }
+
+            if(activation != null){
+                created.setActivation(activation);
+            }
+
+            if(!created.isFrozen() && valueOptimizer != null){
+                created.setOptimizers(valueOptimizer, policyOptimizer);
+            }
+
+            if(quantization != null){
+                created.quantizeAfterCalibration(quantization, calibrationSteps);
+            }
+
+            created.setOverheadBudget(budget);
+            created.setMinGCInterval(minGCIntervalMillis);
+
+            created.startBackground(periodMillis);
+        } catch(RuntimeException exception){
+            created.shutdown();
+            throw exception;
+        }
+
+        if(checkpoint != null && !created.isFrozen()){
+            GCAgentLauncher.scheduleCheckpoints(created, checkpoint, checkpointSeconds);
+        }
+
+        return created;
+    }
+
+    /**
+     * True for the rewards computed from the work the application reports through GCAgent.reportWork().
+     */
+    private static boolean needsReportedWork(RewardMode rewardMode){
+        return rewardMode == RewardMode.STEP_TIME || rewardMode == RewardMode.THROUGHPUT;
+    }
+
+    private static void scheduleCheckpoints(GCAgent agent, String path, long periodSeconds){
+        ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread t = new Thread(runnable, "gc-agent-checkpoint");
+            t.setDaemon(true);
+            return t;
+        });
+
+        saver.scheduleWithFixedDelay(() -> GCAgentLauncher.save(agent, path), periodSeconds, periodSeconds, TimeUnit.SECONDS);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            saver.shutdown();
+            agent.stopBackground();
+            GCAgentLauncher.save(agent, path);
+        }, "gc-agent-shutdown"));
+    }
+
+    private static void save(GCAgent agent, String path){
+        try{
+            agent.saveCheckpointExclusive(path);
+        } catch(IOException exception){
+            System.err.println("Could not save GCAgent checkpoint.");
+            System.err.println(exception);
+        }
+    }
+
+    static Map<String, String> parseArgs(String args){
+        Map<String, String> options = new HashMap<String, String>();
+
+        if(args == null || args.trim().isEmpty()){
+            return options;
+        }
+
+        for(String pair : args.split(",", -1)){
+            int eq = pair.indexOf('=');
+
+            if(eq <= 0){
+                throw new IllegalArgumentException("Agent argument is not key=value: '" + pair + "'");
+            }
+
+            String key = pair.substring(0, eq).trim();
+            if(!GCAgentLauncher.KEYS.contains(key)){
+                throw new IllegalArgumentException("Unknown agent argument: " + key);
+            }
+
+            options.put(key, pair.substring(eq + 1).trim());
+        }
+
+        return options;
+    }
+
+    private static int getInt(Map<String, String> options, String key, int defaultValue){
+        if(!options.containsKey(key)){
+            return defaultValue;
+        }
+
+        try{
+            return Integer.parseInt(options.get(key));
+        } catch(NumberFormatException exception){
+            throw new IllegalArgumentException(key + " is not an integer: " + options.get(key));
+        }
+    }
+
+    private static float getFloat(Map<String, String> options, String key, float defaultValue){
+        if(!options.containsKey(key)){
+            return defaultValue;
+        }
+
+        try{
+            return Float.parseFloat(options.get(key));
+        } catch(NumberFormatException exception){
+            throw new IllegalArgumentException(key + " is not a number: " + options.get(key));
+        }
+    }
+
+    private static boolean getBoolean(Map<String, String> options, String key, boolean defaultValue){
+        if(!options.containsKey(key)){
+            return defaultValue;
+        }
+
+        String value = options.get(key);
+        if(!value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false")){
+            throw new IllegalArgumentException(key + " must be true or false: " + value);
+        }
+
+        return Boolean.parseBoolean(value);
+    }
+
+    /**
+     * The constant of type named by the value of key, or null when the key is absent.
+     */
+    private static <E extends Enum<E>> E getEnum(Map<String, String> options, String key, Class<E> type){
+        if(!options.containsKey(key)){
+            return null;
+        }
+
+        try{
+            return Enum.valueOf(type, options.get(key));
+        } catch(IllegalArgumentException exception){
+            throw new IllegalArgumentException(key + " must be one of " + Arrays.toString(type.getEnumConstants()) + ": " + options.get(key));
+        }
+    }
+
+    private static void require(boolean condition, String message){
+        if(!condition){
+            throw new IllegalArgumentException(message);
+        }
+    }
+
+    private static Cadence getCadence(Map<String, String> options){
+        if(!options.containsKey("cadenceMillis")){
+            return Cadence.none();
+        }
+
+        String[] parts = options.get("cadenceMillis").split("/");
+        long[] waits = new long[parts.length];
+        for(int i = 0; i < parts.length; i++){
+            try{
+                waits[i] = Long.parseLong(parts[i].trim());
+            } catch(NumberFormatException exception){
+                throw new IllegalArgumentException("cadenceMillis must be waits separated by /: " + options.get("cadenceMillis"));
+            }
+        }
+
+        return Cadence.millis(waits);
+    }
+}
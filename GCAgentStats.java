@@ -0,0 +1,290 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Live counters and gauges of one GCAgent, exposed over JMX. Recording is allocation free so it can sit on the agent's hot path.
+ */
+public class GCAgentStats implements GCAgentStatsMBean{
+
+    private static final int LATENCY_BUCKETS = 64;
+
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
+    private AtomicLong invocations;
+    private AtomicLong explicitGCs;
+    private AtomicLong coalescedGCs;
+    private AtomicLong acceptedGenerations;
+
+    private volatile float meanReward;
+    private volatile float bestMeanReward;
+    private volatile float confidence;
+    private volatile float lastTDError;
+    private volatile String quantizationReport;
+
+    private AtomicLongArray latencyHistogram;
+    private AtomicLong latencyTotalNanos;
+    private AtomicLong latencyMaxNanos;
+
+    private AgentOverhead overhead;
+
+    private ObjectName name;
+
+    public GCAgentStats(AgentOverhead overhead){
+        this.overhead = overhead;
+
+        this.invocations = new AtomicLong();
+        this.explicitGCs = new AtomicLong();
+        this.coalescedGCs = new AtomicLong();
+        this.acceptedGenerations = new AtomicLong();
+
+        this.bestMeanReward = Float.NEGATIVE_INFINITY;
+        this.quantizationReport = "";
+
+        this.latencyHistogram = new AtomicLongArray(GCAgentStats.LATENCY_BUCKETS);
+        this.latencyTotalNanos = new AtomicLong();
+        this.latencyMaxNanos = new AtomicLong();
+    }
+
+    /**
+     * Registers this object on the platform MBean server. Failures are reported and otherwise ignored, since the agent works without JMX.
+     */
+    public void register(){
+        try{
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            this.name = new ObjectName("rl_gc:type=GCAgent,id=" + GCAgentStats.NEXT_ID.getAndIncrement());
+            server.registerMBean(this, this.name);
+        } catch(JMException exception){
+            System.err.println("Could not register GCAgent MBean.");
+            System.err.println(exception);
+            this.name = null;
+        }
+    }
+
+    public void unregister(){
+        if(this.name == null){
+            return;
+        }
+
+        try{
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.name);
+        } catch(JMException exception){
+            System.err.println("Could not unregister GCAgent MBean.");
+            System.err.println(exception);
+        }
+
+        this.name = null;
+    }
+
+    public ObjectName getObjectName(){
+        return this.name;
+    }
+
+    void recordInvoke(long latencyNanos){
+        this.invocations.incrementAndGet();
+
+        int bucket = 63 - Long.numberOfLeadingZeros(Math.max(latencyNanos, 1));
+        this.latencyHistogram.incrementAndGet(bucket);
+        this.latencyTotalNanos.addAndGet(latencyNanos);
+        this.latencyMaxNanos.accumulateAndGet(latencyNanos, Math::max);
+    }
+
+    void recordExplicitGC(){
+        this.explicitGCs.incrementAndGet();
+    }
+
+    void recordCoalescedGC(){
+        this.coalescedGCs.incrementAndGet();
+    }
+
+    void recordAcceptedGeneration(){
+        this.acceptedGenerations.incrementAndGet();
+    }
+
+    void recordTDError(float tdError){
+        this.lastTDError = tdError;
+    }
+
+    void recordQuantization(Quantizer.Report report){
+        this.quantizationReport = report.toString();
+    }
+
+    void recordWindow(float meanReward, float confidence, float bestMeanReward){
+        this.meanReward = meanReward;
+        this.confidence = confidence;
+        this.bestMeanReward = bestMeanReward;
+    }
+
+    @Override
+    public long getInvocations(){
+        return this.invocations.get();
+    }
+
+    @Override
+    public long getExplicitGCs(){
+        return this.explicitGCs.get();
+    }
+
+    @Override
+    public long getCoalescedGCs(){
+        return this.coalescedGCs.get();
+    }
+
+    @Override
+    public long getAcceptedGenerations(){
+        return this.acceptedGenerations.get();
+    }
+
+    @Override
+    public float getMeanReward(){
+        return this.meanReward;
+    }
+
+    @Override
+    public float getBestMeanReward(){
+        return this.bestMeanReward;
+    }
+
+    @Override
+    public float getConfidence(){
+        return this.confidence;
+    }
+
+    @Override
+    public float getLastTDError(){
+        return this.lastTDError;
+    }
+
+    @Override
+    public long[] getInvokeLatencyHistogram(){
+        long[] counts = new long[GCAgentStats.LATENCY_BUCKETS];
+
+        for(int i = 0; i < counts.length; i++){
+            counts[i] = this.latencyHistogram.get(i);
+        }
+
+        return counts;
+    }
+
+    @Override
+    public double getInvokeLatencyMeanMicros(){
+        long count = 0;
+        for(int i = 0; i < GCAgentStats.LATENCY_BUCKETS; i++){
+            count += this.latencyHistogram.get(i);
+        }
+
+        return count > 0 ? this.latencyTotalNanos.get() / (count * 1000.0) : 0.0;
+    }
+
+    @Override
+    public double getInvokeLatencyP50Micros(){
+        return this.percentileMicros(0.5);
+    }
+
+    @Override
+    public double getInvokeLatencyP99Micros(){
+        return this.percentileMicros(0.99);
+    }
+
+    @Override
+    public double getInvokeLatencyMaxMicros(){
+        return this.latencyMaxNanos.get() / 1000.0;
+    }
+
+    @Override
+    public long getObservationNanos(){
+        return this.overhead.getPhaseNanos(AgentOverhead.OBSERVATION);
+    }
+
+    @Override
+    public long getInferenceNanos(){
+        return this.overhead.getPhaseNanos(AgentOverhead.INFERENCE);
+    }
+
+    @Override
+    public long getLearningNanos(){
+        return this.overhead.getPhaseNanos(AgentOverhead.LEARNING);
+    }
+
+    @Override
+    public long getGCActionNanos(){
+        return this.overhead.getPhaseNanos(AgentOverhead.GC_ACTION);
+    }
+
+    @Override
+    public long getBackgroundNanos(){
+        return this.overhead.getPhaseNanos(AgentOverhead.BACKGROUND);
+    }
+
+    @Override
+    public float getOverheadFraction(){
+        return this.overhead.getOverheadFraction();
+    }
+
+    @Override
+    public float getOverheadBudget(){
+        return this.overhead.getBudget();
+    }
+
+    @Override
+    public long getSkippedLearningSteps(){
+        return this.overhead.getSkippedLearningSteps();
+    }
+
+    @Override
+    public long getSkippedInvocations(){
+        return this.overhead.getSkippedInvocations();
+    }
+
+    @Override
+    public String getQuantizationReport(){
+        return this.quantizationReport;
+    }
+
+    @Override
+    public String getKernelBackend(){
+        return Kernels.get().getName();
+    }
+
+    @Override
+    public void resetLatencyHistogram(){
+        for(int i = 0; i < GCAgentStats.LATENCY_BUCKETS; i++){
+            this.latencyHistogram.set(i, 0);
+        }
+
+        this.latencyTotalNanos.set(0);
+        this.latencyMaxNanos.set(0);
+    }
+
+    /**
+     * Upper bound of the histogram bucket containing the given percentile. Power of two buckets make this accurate to a factor of 2.
+     */
+    private double percentileMicros(double percentile){
+        long[] counts = this.getInvokeLatencyHistogram();
+
+        long total = 0;
+        for(int i = 0; i < counts.length; i++){
+            total += counts[i];
+        }
+
+        if(total == 0){
+            return 0.0;
+        }
+
+        long target = (long)Math.ceil(percentile * total);
+        long seen = 0;
+        for(int i = 0; i < counts.length; i++){
+            seen += counts[i];
+
+            if(seen >= target){
+                return Math.min((double)(1L << Math.min(i + 1, 62)), this.latencyMaxNanos.get()) / 1000.0;
+            }
+        }
+
+        return this.getInvokeLatencyMaxMicros();
+    }
+}
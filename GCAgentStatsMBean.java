@@ -0,0 +1,76 @@
+/**
+ * Management interface of GCAgentStats, registered on the platform MBean server as rl_gc:type=GCAgent,id=N.
+ */
+public interface GCAgentStatsMBean{
+
+    long getInvocations();
+
+    long getExplicitGCs();
+
+    /**
+     * GC actions that were merged into a collection already in flight or too recent (see GCAgent.setMinGCInterval()).
+     */
+    long getCoalescedGCs();
+
+    long getAcceptedGenerations();
+
+    float getMeanReward();
+
+    float getBestMeanReward();
+
+    float getConfidence();
+
+    float getLastTDError();
+
+    /**
+     * Counts of invoke() latencies, where bucket i holds latencies in [2^i, 2^(i+1)) nanoseconds.
+     */
+    long[] getInvokeLatencyHistogram();
+
+    double getInvokeLatencyMeanMicros();
+
+    double getInvokeLatencyP50Micros();
+
+    double getInvokeLatencyP99Micros();
+
+    double getInvokeLatencyMaxMicros();
+
+    void resetLatencyHistogram();
+
+    /**
+     * CPU time per phase: the invoking thread plus the kernel workers it waited on (see AgentOverhead).
+     */
+    long getObservationNanos();
+
+    long getInferenceNanos();
+
+    long getLearningNanos();
+
+    long getGCActionNanos();
+
+    /**
+     * CPU time of the background quantization and evolution strategies runs.
+     */
+    long getBackgroundNanos();
+
+    /**
+     * Agent time over process CPU time in the rolling window (excluding the GC action).
+     */
+    float getOverheadFraction();
+
+    float getOverheadBudget();
+
+    long getSkippedLearningSteps();
+
+    long getSkippedInvocations();
+
+    /**
+     * Result of the last quantization of a frozen agent (see Quantizer.Report), empty when there was none.
+     */
+    String getQuantizationReport();
+
+    /**
+     * Layer kernel backend in use, "scalar" or "vector" followed by the vector width in bits.
+     */
+    String getKernelBackend();
+}
@@ -0,0 +1,45 @@
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single-flight gate for explicit collections. System.gc() is JVM wide, so the gate is shared by every agent in the process:
+ * a request made while another collection is running, or within minIntervalNanos of the last one finishing, is coalesced into it.
+ */
+public class GCCoalescer{
+
+    private static final AtomicBoolean IN_FLIGHT = new AtomicBoolean(false);
+
+    //nanoTime when the last explicit collection finished
+    private static final AtomicLong LAST_GC_END = new AtomicLong(System.nanoTime() - Long.MAX_VALUE / 2);
+
+    private GCCoalescer(){
+    }
+
+    /**
+     * Runs System.gc() unless a collection is in flight or finished less than minIntervalNanos ago.
+     * Returns true if this call performed the collection.
+     */
+    public static boolean requestGC(long minIntervalNanos){
+        if(System.nanoTime() - GCCoalescer.LAST_GC_END.get() < minIntervalNanos){
+            return false;
+        }
+
+        if(!GCCoalescer.IN_FLIGHT.compareAndSet(false, true)){
+            return false;
+        }
+
+        try{
+            //Re-check under the gate: another caller may have finished a collection since the first check
+            if(System.nanoTime() - GCCoalescer.LAST_GC_END.get() < minIntervalNanos){
+                return false;
+            }
+
+            System.gc();
+            GCCoalescer.LAST_GC_END.set(System.nanoTime());
+
+            return true;
+        } finally {
+            GCCoalescer.IN_FLIGHT.set(false);
+        }
+    }
+}
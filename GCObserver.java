@@ -0,0 +1,271 @@
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Observation source driven by GC notifications. Listens to every GarbageCollectorMXBean and records, on the notification thread,
+ * the per-generation occupancy after each collection, the time of the last young and full collection and recent pause durations.
+ * The agent thread only reads the recorded fields plus Runtime totals, so writing the observation does not allocate.
+ */
+public class GCObserver implements NotificationListener{
+
+    public static final int OBSERVATION_SIZE = 8;
+
+    private static final int RECENT_PAUSES = 16;
+
+    //Fraction of the old generation max that counts as "over threshold" when the pool has no collection usage threshold set
+    private static final float DEFAULT_OLD_THRESHOLD = 0.9f;
+
+    private ArrayList<NotificationEmitter> emitters;
+
+    private ArrayList<String> youngPoolNames;
+    private ArrayList<MemoryPoolMXBean> oldPools;
+
+    //Written only by the notification thread
+    private volatile long lastYoungGCTime;
+    private volatile long lastFullGCTime;
+
+    private volatile long youngCount;
+    private volatile long fullCount;
+
+    private volatile long youngCommittedAfterGC;
+    private volatile long oldUsedAfterGC;
+    private volatile long oldMax;
+
+    private volatile boolean oldThresholdExceeded;
+
+    private long[] recentPausesMillis;
+    private volatile int numPauses;
+    private volatile long lastPauseMillis;
+    private volatile long totalPauseMillis;
+
+    //Bytes freed by all collections so far; heap used plus this grows by exactly what the application allocates
+    private volatile long reclaimedBytes;
+
+    //Longest pause since the last call to takeMaxPauseMillis()
+    private AtomicLong windowMaxPauseMillis;
+
+    public GCObserver(){
+        this.youngPoolNames = new ArrayList<String>();
+        this.oldPools = new ArrayList<MemoryPoolMXBean>();
+
+        long max = 0;
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+            if(pool.getType() != MemoryType.HEAP){
+                continue;
+            }
+
+            if(GCObserver.isYoungPool(pool.getName())){
+                this.youngPoolNames.add(pool.getName());
+                this.youngCommittedAfterGC += pool.getUsage().getCommitted();
+            } else {
+                this.oldPools.add(pool);
+                this.oldUsedAfterGC += pool.getUsage().getUsed();
+
+                long poolMax = pool.getUsage().getMax();
+                max += poolMax > 0 ? poolMax : pool.getUsage().getCommitted();
+            }
+        }
+        this.oldMax = Math.max(max, 1);
+
+        long now = System.nanoTime();
+        this.lastYoungGCTime = now;
+        this.lastFullGCTime = now;
+
+        this.recentPausesMillis = new long[GCObserver.RECENT_PAUSES];
+        this.windowMaxPauseMillis = new AtomicLong();
+
+        //Subscribe to the collectors
+        this.emitters = new ArrayList<NotificationEmitter>();
+        for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()){
+            if(gc instanceof NotificationEmitter){
+                NotificationEmitter emitter = (NotificationEmitter)gc;
+                emitter.addNotificationListener(this, null, null);
+                this.emitters.add(emitter);
+            }
+        }
+    }
+
+    /**
+     * Unsubscribes from the collectors. The observer keeps its last recorded values.
+     */
+    public void close(){
+        for(NotificationEmitter emitter : this.emitters){
+            try{
+                emitter.removeNotificationListener(this);
+            } catch(javax.management.ListenerNotFoundException exception){
+                //Already removed
+            }
+        }
+
+        this.emitters.clear();
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback){
+        if(!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())){
+            return;
+        }
+
+        GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData)notification.getUserData());
+        String action = info.getGcAction();
+
+        //Generational collectors report "end of minor GC" and "end of major GC". ZGC and Shenandoah report each pause ("end of GC pause",
+        //or the phase name) and, separately, each concurrent cycle ("end of GC cycle"), whose duration is mostly concurrent work.
+        boolean minor = action.contains("minor");
+        boolean major = action.contains("major");
+        boolean cycle = action.contains("cycle");
+
+        GcInfo gcInfo = info.getGcInfo();
+        Map<String, MemoryUsage> before = gcInfo.getMemoryUsageBeforeGc();
+        Map<String, MemoryUsage> after = gcInfo.getMemoryUsageAfterGc();
+
+        long reclaimed = 0;
+        for(Map.Entry<String, MemoryUsage> entry : before.entrySet()){
+            MemoryUsage afterUsage = after.get(entry.getKey());
+            if(afterUsage != null && (this.youngPoolNames.contains(entry.getKey()) || this.isOldPool(entry.getKey()))){
+                reclaimed += entry.getValue().getUsed() - afterUsage.getUsed();
+            }
+        }
+        this.reclaimedBytes += Math.max(reclaimed, 0);
+
+        long youngCommitted = 0;
+        for(String name : this.youngPoolNames){
+            MemoryUsage usage = after.get(name);
+            if(usage != null){
+                youngCommitted += usage.getCommitted();
+            }
+        }
+
+        long oldUsed = 0;
+        boolean exceeded = false;
+        for(MemoryPoolMXBean pool : this.oldPools){
+            MemoryUsage usage = after.get(pool.getName());
+            if(usage == null){
+                continue;
+            }
+
+            oldUsed += usage.getUsed();
+
+            if(pool.isCollectionUsageThresholdSupported() && pool.getCollectionUsageThreshold() > 0){
+                exceeded |= usage.getUsed() >= pool.getCollectionUsageThreshold();
+            } else if(usage.getMax() > 0){
+                exceeded |= usage.getUsed() >= GCObserver.DEFAULT_OLD_THRESHOLD * usage.getMax();
+            }
+        }
+
+        this.youngCommittedAfterGC = youngCommitted;
+        this.oldUsedAfterGC = oldUsed;
+        this.oldThresholdExceeded = exceeded;
+
+        //Every notification except a concurrent cycle is a stop-the-world pause, including the G1 remark/cleanup and ZGC/Shenandoah pauses
+        if(!cycle){
+            long pause = gcInfo.getDuration();
+            this.recentPausesMillis[this.numPauses % GCObserver.RECENT_PAUSES] = pause;
+            this.lastPauseMillis = pause;
+            this.totalPauseMillis += pause;
+            this.windowMaxPauseMillis.accumulateAndGet(pause, Math::max);
+            this.numPauses++;
+        }
+
+        //Minor and major only pick the collection time to update; a concurrent cycle of a single generation collector covers the whole heap
+        long now = System.nanoTime();
+        if(minor){
+            this.lastYoungGCTime = now;
+            this.youngCount++;
+        } else if(major || cycle){
+            this.lastFullGCTime = now;
+            this.fullCount++;
+        }
+    }
+
+    /**
+     * Writes OBSERVATION_SIZE values into observation starting at offset.
+     */
+    public void getObservation(float[] observation, int offset){
+        Runtime r = Runtime.getRuntime();
+        long heapUsed = r.totalMemory() - r.freeMemory();
+
+        //Index 0: young generation occupancy. Old usage only changes at collections, so everything above it was allocated since the last one.
+        long youngUsed = Math.max(heapUsed - this.oldUsedAfterGC, 0);
+        observation[offset] = this.youngCommittedAfterGC > 0 ? Math.min(youngUsed / (float)this.youngCommittedAfterGC, 2f) : 0f;
+
+        //Index 1: old generation occupancy after the last collection
+        observation[offset + 1] = this.oldUsedAfterGC / (float)this.oldMax;
+
+        //Index 2, 3: time since the last young and full collection (log seconds, since the range is large)
+        long now = System.nanoTime();
+        observation[offset + 2] = (float)Math.log1p((now - this.lastYoungGCTime) / 1e9);
+        observation[offset + 3] = (float)Math.log1p((now - this.lastFullGCTime) / 1e9);
+
+        //Index 4: last pause (seconds)
+        observation[offset + 4] = this.lastPauseMillis / 1000f;
+
+        //Index 5, 6: max and mean of the recent pauses (seconds)
+        int count = Math.min(this.numPauses, GCObserver.RECENT_PAUSES);
+        long maxPause = 0;
+        long sumPause = 0;
+        for(int i = 0; i < count; i++){
+            maxPause = Math.max(maxPause, this.recentPausesMillis[i]);
+            sumPause += this.recentPausesMillis[i];
+        }
+        observation[offset + 5] = maxPause / 1000f;
+        observation[offset + 6] = count > 0 ? (sumPause / (float)count) / 1000f : 0f;
+
+        //Index 7: whether the old generation was over its collection usage threshold after the last collection
+        observation[offset + 7] = this.oldThresholdExceeded ? 1f : 0f;
+    }
+
+    public long getYoungCount(){
+        return this.youngCount;
+    }
+
+    public long getFullCount(){
+        return this.fullCount;
+    }
+
+    public long getTotalPauseMillis(){
+        return this.totalPauseMillis;
+    }
+
+    /**
+     * Returns the longest pause seen since the previous call and starts a new window.
+     */
+    public long takeMaxPauseMillis(){
+        return this.windowMaxPauseMillis.getAndSet(0);
+    }
+
+    /**
+     * Estimate of the total bytes allocated on the heap so far (current usage plus everything reclaimed). Only differences are meaningful.
+     */
+    public long getAllocatedBytes(){
+        Runtime r = Runtime.getRuntime();
+
+        return r.totalMemory() - r.freeMemory() + this.reclaimedBytes;
+    }
+
+    private boolean isOldPool(String name){
+        for(MemoryPoolMXBean pool : this.oldPools){
+            if(pool.getName().equals(name)){
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean isYoungPool(String name){
+        return name.contains("Eden") || name.contains("Survivor") || name.contains("Nursery");
+    }
+}
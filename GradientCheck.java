@@ -0,0 +1,308 @@
+import java.util.Random;
+
+/**
+ * Compares analytic gradients against central finite differences, and the fused passes against the passes they replace, run with
+ * java GradientCheck. Exits with status 1 if any gradient is off by more than TOLERANCE, or any fused result differs by more than
+ * EQUIVALENCE_TOLERANCE, so it can gate a build.
+ *
+ * LSTM.backwardPass() is checked for the parameters, the input and the incoming hidden and cell state, on the objective
+ * wY . nextHState + wC . nextCState, i.e. with dObjectivedNextC set as in backpropagation through time.
+ * RecurrentEncoder.backpropagate() is checked against w . state over an episode shorter than the truncation, where the truncated
+ * gradient is the exact one, for the latest state and for one a few steps back.
+ * backwardAndApply() of the dense layers and LSTM must leave the same parameters and input gradients as backwardPass() followed
+ * by applyGradient(), and forwardBatch() and backwardBatch() the same outputs, input gradients and summed gradient as forwardPass()
+ * and backwardPass() run sample by sample.
+ */
+public class GradientCheck{
+
+    //Central difference step; the forward passes run in float, so smaller steps drown in rounding
+    private static final float EPSILON = 1e-2f;
+
+    private static final double TOLERANCE = 1e-3;
+
+    //The fused passes only reorder float sums
+    private static final double EQUIVALENCE_TOLERANCE = 1e-5;
+
+    //Step of the parameter updates compared, large enough to move every parameter visibly
+    private static final float UPDATE_SCALAR = -0.1f;
+
+    private static final int NUM_UNITS = 6;
+    private static final int INPUT_SIZE = 5;
+
+    private static final int NUM_ACTIONS = 3;
+    private static final int EPISODE_STEPS = 6;
+    private static final int TRUNCATION_STEPS = 8;
+
+    //Not a multiple of four, so the batched kernels' remainder loops run too
+    private static final int BATCH_SIZE = 7;
+
+    private static final Random RANDOM = new Random(42);
+
+    private static boolean failed;
+
+    public static void main(String[] args){
+        System.out.println("Kernels: " + Kernels.get().getName());
+
+        GradientCheck.checkLSTM();
+        GradientCheck.checkEncoder(0);
+        GradientCheck.checkEncoder(2);
+
+        GradientCheck.checkBackwardAndApply("DenseTanh", new DenseTanh(GradientCheck.NUM_UNITS, GradientCheck.INPUT_SIZE));
+        GradientCheck.checkBackwardAndApply("DenseLinear", new DenseLinear(GradientCheck.NUM_UNITS, GradientCheck.INPUT_SIZE));
+        GradientCheck.checkBackwardAndApply("LSTM", new LSTM(GradientCheck.NUM_UNITS, GradientCheck.INPUT_SIZE));
+
+        GradientCheck.checkBatch("DenseTanh", new DenseTanh(GradientCheck.NUM_UNITS, GradientCheck.INPUT_SIZE));
+        GradientCheck.checkBatch("DenseLinear", new DenseLinear(GradientCheck.NUM_UNITS, GradientCheck.INPUT_SIZE));
+        GradientCheck.checkBatch("LSTM", new LSTM(GradientCheck.NUM_UNITS, GradientCheck.INPUT_SIZE));
+
+        if(GradientCheck.failed){
+            System.err.println("Gradient check failed");
+            System.exit(1);
+        }
+
+        System.out.println("Gradient check passed");
+    }
+
+    private static void checkLSTM(){
+        LSTM lstm = new LSTM(GradientCheck.NUM_UNITS, GradientCheck.INPUT_SIZE);
+
+        //Larger weights than the default initialization, so the gates are away from their linear region
+        GradientCheck.fill(lstm.parameters, 0.5f);
+        GradientCheck.fill(lstm.inputVector, 1f);
+        GradientCheck.fill(lstm.currentHState, 1f);
+        GradientCheck.fill(lstm.currentCState, 1f);
+
+        float[] wY = new float[GradientCheck.NUM_UNITS];
+        float[] wC = new float[GradientCheck.NUM_UNITS];
+        GradientCheck.fill(wY, 1f);
+        GradientCheck.fill(wC, 1f);
+
+        lstm.forwardPass();
+        System.arraycopy(wY, 0, lstm.dObjectivedY, 0, wY.length);
+        System.arraycopy(wC, 0, lstm.dObjectivedNextC, 0, wC.length);
+        lstm.backwardPass();
+
+        float[] gradient = lstm.getGradient().clone();
+        float[] dX = lstm.dObjectivedX.clone();
+        float[] dPrevH = lstm.dObjectivedPrevH.clone();
+        float[] dPrevC = lstm.dObjectivedPrevC.clone();
+
+        GradientCheck.Objective objective = () -> {
+            lstm.forwardPass();
+
+            return GradientCheck.dot(wY, lstm.nextHState) + GradientCheck.dot(wC, lstm.nextCState);
+        };
+
+        GradientCheck.compare("LSTM parameters", gradient, lstm.parameters, objective);
+        GradientCheck.compare("LSTM dObjectivedX", dX, lstm.inputVector, objective);
+        GradientCheck.compare("LSTM dObjectivedPrevH", dPrevH, lstm.currentHState, objective);
+        GradientCheck.compare("LSTM dObjectivedPrevC", dPrevC, lstm.currentCState, objective);
+    }
+
+    /**
+     * Encodes an episode and backpropagates w . state from the state stepsAgo encode() calls back. The objective replays the
+     * episode from reset() up to that state.
+     */
+    private static void checkEncoder(int stepsAgo){
+        int observationSize = GradientCheck.INPUT_SIZE;
+        RecurrentEncoder encoder = new RecurrentEncoder(GradientCheck.NUM_UNITS, GradientCheck.NUM_ACTIONS, observationSize, GradientCheck.TRUNCATION_STEPS);
+        Layer lstm = encoder.getNetwork().get(0);
+        GradientCheck.fill(lstm.parameters, 0.5f);
+
+        int[] actions = new int[GradientCheck.EPISODE_STEPS];
+        float[][] observations = new float[GradientCheck.EPISODE_STEPS][observationSize];
+        for(int t = 0; t < actions.length; t++){
+            actions[t] = t == 0 ? -1 : GradientCheck.RANDOM.nextInt(GradientCheck.NUM_ACTIONS);
+            GradientCheck.fill(observations[t], 1f);
+        }
+
+        float[] w = new float[GradientCheck.NUM_UNITS];
+        GradientCheck.fill(w, 1f);
+
+        GradientCheck.Objective objective = () -> {
+            encoder.reset();
+
+            float[] state = null;
+            for(int t = 0; t < actions.length - stepsAgo; t++){
+                state = encoder.encode(actions[t], observations[t]);
+            }
+
+            return GradientCheck.dot(w, state);
+        };
+
+        //Fill the ring with the whole episode, then take the gradient backpropagate() applies and undo the update
+        encoder.reset();
+        for(int t = 0; t < actions.length; t++){
+            encoder.encode(actions[t], observations[t]);
+        }
+
+        float[] parameters = lstm.parameters.clone();
+        encoder.backpropagate(w, stepsAgo, 1f);
+        float[] gradient = lstm.getGradient().clone();
+        System.arraycopy(parameters, 0, lstm.parameters, 0, parameters.length);
+
+        GradientCheck.compare("RecurrentEncoder parameters, " + stepsAgo + " steps ago", gradient, lstm.parameters, objective);
+    }
+
+    /**
+     * Runs backwardPass() and applyGradient() on layer and backwardAndApply() on a duplicate, from the same parameters, input and
+     * incoming gradient, and compares the updated parameters and the input gradients.
+     */
+    private static void checkBackwardAndApply(String name, Layer layer){
+        GradientCheck.fill(layer.parameters, 0.5f);
+        GradientCheck.fill(layer.inputVector, 1f);
+        GradientCheck.fill(layer.dObjectivedY, 1f);
+
+        if(layer instanceof LSTM){
+            LSTM lstm = (LSTM)layer;
+            GradientCheck.fill(lstm.currentHState, 1f);
+            GradientCheck.fill(lstm.currentCState, 1f);
+            GradientCheck.fill(lstm.dObjectivedNextC, 1f);
+        }
+
+        Layer fused = layer.duplicate();
+        System.arraycopy(layer.inputVector, 0, fused.inputVector, 0, layer.inputVector.length);
+        System.arraycopy(layer.dObjectivedY, 0, fused.dObjectivedY, 0, layer.dObjectivedY.length);
+        if(layer instanceof LSTM){
+            System.arraycopy(((LSTM)layer).dObjectivedNextC, 0, ((LSTM)fused).dObjectivedNextC, 0, layer.dObjectivedY.length);
+        }
+
+        layer.forwardPass();
+        layer.backwardPass();
+        layer.applyGradient(GradientCheck.UPDATE_SCALAR);
+
+        fused.forwardPass();
+        fused.backwardAndApply(GradientCheck.UPDATE_SCALAR);
+
+        GradientCheck.compareValues(name + " backwardAndApply parameters", layer.parameters, fused.parameters);
+        GradientCheck.compareValues(name + " backwardAndApply dObjectivedX", layer.dObjectivedX, fused.dObjectivedX);
+
+        if(layer instanceof LSTM){
+            GradientCheck.compareValues(name + " backwardAndApply dObjectivedPrevH", ((LSTM)layer).dObjectivedPrevH, ((LSTM)fused).dObjectivedPrevH);
+            GradientCheck.compareValues(name + " backwardAndApply dObjectivedPrevC", ((LSTM)layer).dObjectivedPrevC, ((LSTM)fused).dObjectivedPrevC);
+        }
+    }
+
+    /**
+     * Runs forwardPass() and backwardPass() per sample of a batch, summing the gradients, then forwardBatch() and backwardBatch() on
+     * the whole batch, and compares the outputs, the input gradients and the gradient.
+     */
+    private static void checkBatch(String name, Layer layer){
+        int batchSize = GradientCheck.BATCH_SIZE;
+        int inputSize = layer.inputVector.length;
+        int outputSize = layer.outputVector.length;
+
+        GradientCheck.fill(layer.parameters, 0.5f);
+
+        if(layer instanceof LSTM){
+            LSTM lstm = (LSTM)layer;
+            GradientCheck.fill(lstm.currentHState, 1f);
+            GradientCheck.fill(lstm.currentCState, 1f);
+            GradientCheck.fill(lstm.dObjectivedNextC, 1f);
+        }
+
+        float[] input = new float[batchSize * inputSize];
+        float[] dObjdY = new float[batchSize * outputSize];
+        GradientCheck.fill(input, 1f);
+        GradientCheck.fill(dObjdY, 1f);
+
+        float[] output = new float[batchSize * outputSize];
+        float[] dX = new float[batchSize * inputSize];
+        float[] gradient = new float[layer.getNumParameters()];
+
+        for(int b = 0; b < batchSize; b++){
+            System.arraycopy(input, b * inputSize, layer.inputVector, 0, inputSize);
+            layer.forwardPass();
+            System.arraycopy(layer.outputVector, 0, output, b * outputSize, outputSize);
+
+            System.arraycopy(dObjdY, b * outputSize, layer.dObjectivedY, 0, outputSize);
+            layer.backwardPass();
+            System.arraycopy(layer.dObjectivedX, 0, dX, b * inputSize, inputSize);
+
+            float[] sampleGradient = layer.getGradient();
+            for(int i = 0; i < gradient.length; i++){
+                gradient[i] += sampleGradient[i];
+            }
+        }
+
+        GradientCheck.compareValues(name + " forwardBatch output", output, layer.forwardBatch(input, batchSize));
+        GradientCheck.compareValues(name + " backwardBatch dObjectivedX", dX, layer.backwardBatch(dObjdY, batchSize));
+        GradientCheck.compareValues(name + " backwardBatch gradient", gradient, layer.getGradient());
+    }
+
+    /**
+     * Checks the first expected.length values of actual against expected and reports the largest difference.
+     */
+    private static void compareValues(String name, float[] expected, float[] actual){
+        double maxError = 0;
+
+        for(int i = 0; i < expected.length; i++){
+            maxError = Math.max(maxError, Math.abs((double)expected[i] - actual[i]));
+        }
+
+        String report = name + ": max difference " + maxError + " over " + expected.length + " values";
+
+        if(maxError <= GradientCheck.EQUIVALENCE_TOLERANCE){
+            System.out.println(report);
+        } else {
+            System.err.println(report + ", above " + GradientCheck.EQUIVALENCE_TOLERANCE);
+            GradientCheck.failed = true;
+        }
+    }
+
+    /**
+     * Checks analytic[i] against the central difference of objective in values[i], for every i, and reports the largest error.
+     */
+    private static void compare(String name, float[] analytic, float[] values, GradientCheck.Objective objective){
+        double maxError = 0;
+        int worst = -1;
+
+        for(int i = 0; i < values.length; i++){
+            float original = values[i];
+
+            values[i] = original + GradientCheck.EPSILON;
+            double plus = objective.evaluate();
+            values[i] = original - GradientCheck.EPSILON;
+            double minus = objective.evaluate();
+            values[i] = original;
+
+            double numeric = (plus - minus) / (2.0 * GradientCheck.EPSILON);
+            double error = Math.abs(numeric - analytic[i]);
+
+            if(error > maxError){
+                maxError = error;
+                worst = i;
+            }
+        }
+
+        boolean passed = maxError <= GradientCheck.TOLERANCE;
+        String report = name + ": max error " + maxError + (worst >= 0 ? " at " + worst : "") + " over " + values.length + " values";
+
+        if(passed){
+            System.out.println(report);
+        } else {
+            System.err.println(report + ", above " + GradientCheck.TOLERANCE);
+            GradientCheck.failed = true;
+        }
+    }
+
+    private static void fill(float[] array, float range){
+        for(int i = 0; i < array.length; i++){
+            array[i] = (2 * GradientCheck.RANDOM.nextFloat() - 1) * range;
+        }
+    }
+
+    private static double dot(float[] a, float[] b){
+        double sum = 0;
+
+        for(int i = 0; i < a.length; i++){
+            sum += (double)a[i] * b[i];
+        }
+
+        return sum;
+    }
+
+    private interface Objective{
+        double evaluate();
+    }
+}
@@ -0,0 +1,325 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Micro benchmarks for the layer kernels, run with java KernelBenchmark [units] [inputs].
+ * Defaults to the first layer of the update network (128 units over 214 inputs). The LSTM step is measured at 128 and 512 units
+ * over the same inputs, against the per-gate layout it replaced.
+ */
+public class KernelBenchmark{
+
+    private static final int WARMUP_ROUNDS = 20000;
+
+    private static final int MEASURED_ROUNDS = 50000;
+
+    public static void main(String[] args){
+        int numUnits = args.length > 0 ? Integer.parseInt(args[0]) : 128;
+        int inputSize = args.length > 1 ? Integer.parseInt(args[1]) : 214;
+
+        System.out.println("Kernels: " + Kernels.get().getName() + ", layer " + numUnits + " x " + inputSize);
+
+        KernelBenchmark.inputGradient(numUnits, inputSize);
+
+        KernelBenchmark.lstmStep(128, inputSize);
+        KernelBenchmark.lstmStep(512, inputSize);
+    }
+
+    /**
+     * One LSTM step: forward alone, forward with backwardPass() and applyGradient(), and forward with the fused backwardAndApply(),
+     * next to the per-gate layout the stacked gate matrix replaced (PerGateLSTM, same parameters and math).
+     */
+    private static void lstmStep(int numUnits, int inputSize){
+        LSTM layer = new LSTM(numUnits, inputSize);
+        for(int i = 0; i < inputSize; i++){
+            layer.inputVector[i] = 0.01f * i;
+        }
+        for(int u = 0; u < numUnits; u++){
+            layer.dObjectivedY[u] = 0.1f;
+        }
+
+        KernelBenchmark.PerGateLSTM baseline = new KernelBenchmark.PerGateLSTM(layer);
+
+        //Keep the 512 unit run short, a step is a few milliseconds there
+        int rounds = KernelBenchmark.MEASURED_ROUNDS * 128 / numUnits / 16;
+
+        long baselineForward = 0;
+        long baselineStep = 0;
+        long forward = 0;
+        long separate = 0;
+        long fused = 0;
+        float check = 0;
+
+        //Interleave the variants so frequency scaling and JIT timing affect them alike
+        for(int pass = 0; pass < 2; pass++){
+            long start = System.nanoTime();
+            for(int n = 0; n < rounds; n++){
+                baseline.forwardPass();
+            }
+            long mid = System.nanoTime();
+
+            for(int n = 0; n < rounds; n++){
+                baseline.forwardPass();
+                baseline.backwardPass();
+                baseline.applyGradient(-1e-6f);
+            }
+            long mid2 = System.nanoTime();
+            check += baseline.dX[0];
+
+            for(int n = 0; n < rounds; n++){
+                layer.forwardPass();
+            }
+            long mid3 = System.nanoTime();
+
+            for(int n = 0; n < rounds; n++){
+                layer.forwardPass();
+                layer.backwardPass();
+                layer.applyGradient(-1e-6f);
+            }
+            long mid4 = System.nanoTime();
+
+            for(int n = 0; n < rounds; n++){
+                layer.forwardPass();
+                layer.backwardAndApply(-1e-6f);
+            }
+            long end = System.nanoTime();
+            check += layer.dObjectivedX[0];
+
+            baselineForward = mid - start;
+            baselineStep = mid2 - mid;
+            forward = mid3 - mid2;
+            separate = mid4 - mid3;
+            fused = end - mid4;
+        }
+
+        System.out.println("LSTM " + numUnits + " units, forward:                    per gate " + baselineForward / (float)rounds / 1000f
+            + " us, stacked " + forward / (float)rounds / 1000f + " us");
+        System.out.println("LSTM " + numUnits + " units, forward + backward + apply: per gate " + baselineStep / (float)rounds / 1000f
+            + " us, stacked " + separate / (float)rounds / 1000f + " us");
+        System.out.println("LSTM " + numUnits + " units, forward + fused backward:   stacked " + fused / (float)rounds / 1000f
+            + " us (checksum " + check + ")");
+    }
+
+    /**
+     * dObjectivedX = W^T delta three ways: the original column walk over a jagged float[][] fetched from the parameter list
+     * on every column, the same column walk over the flat weights, and the row streaming kernel the dense layers use.
+     */
+    private static void inputGradient(int numUnits, int inputSize){
+        Random random = new Random(1);
+
+        DenseTanh layer = new DenseTanh(numUnits, inputSize);
+        float[] delta = new float[numUnits];
+        for(int u = 0; u < numUnits; u++){
+            delta[u] = (float)random.nextGaussian();
+        }
+
+        //The layout before flat parameters: one array per weight row, held in a list of tensors
+        ArrayList<float[][]> jagged = new ArrayList<float[][]>();
+        float[][] weights = new float[numUnits][inputSize];
+        for(int u = 0; u < numUnits; u++){
+            System.arraycopy(layer.parameters, layer.getTensorOffset(0) + u * inputSize, weights[u], 0, inputSize);
+        }
+        jagged.add(weights);
+
+        float[] dX = new float[inputSize];
+        float[] params = layer.parameters;
+
+        long columnJagged = 0;
+        long columnFlat = 0;
+        long rowStreaming = 0;
+        float check = 0;
+
+        //Interleave the variants so frequency scaling and JIT timing affect them alike
+        for(int pass = 0; pass < 2; pass++){
+            int rounds = pass == 0 ? KernelBenchmark.WARMUP_ROUNDS : KernelBenchmark.MEASURED_ROUNDS;
+
+            long start = System.nanoTime();
+            for(int n = 0; n < rounds; n++){
+                for(int i = 0; i < inputSize; i++){
+                    float sum = 0;
+                    for(int u = 0; u < numUnits; u++){
+                        sum += jagged.get(0)[u][i] * delta[u];
+                    }
+                    dX[i] = sum;
+                }
+            }
+            long mid = System.nanoTime();
+            check += dX[0];
+
+            for(int n = 0; n < rounds; n++){
+                for(int i = 0; i < inputSize; i++){
+                    float sum = 0;
+                    for(int u = 0; u < numUnits; u++){
+                        sum += params[u * inputSize + i] * delta[u];
+                    }
+                    dX[i] = sum;
+                }
+            }
+            long mid2 = System.nanoTime();
+            check += dX[0];
+
+            for(int n = 0; n < rounds; n++){
+                layer.denseInputGradient(0, inputSize, delta);
+            }
+            long end = System.nanoTime();
+            check += layer.dObjectivedX[0];
+
+            if(pass == 1){
+                columnJagged = mid - start;
+                columnFlat = mid2 - mid;
+                rowStreaming = end - mid2;
+            }
+        }
+
+        System.out.println("Input gradient, column walk (jagged):  " + KernelBenchmark.micros(columnJagged) + " us");
+        System.out.println("Input gradient, column walk (flat):    " + KernelBenchmark.micros(columnFlat) + " us");
+        System.out.println("Input gradient, row streaming:         " + KernelBenchmark.micros(rowStreaming) + " us");
+        System.out.println("Speedup over the jagged column walk:   " + (float)columnJagged / rowStreaming + " (checksum " + check + ")");
+    }
+
+    private static float micros(long totalNanos){
+        return totalNanos / (float)KernelBenchmark.MEASURED_ROUNDS / 1000f;
+    }
+
+    /**
+     * The LSTM step before the stacked gate matrix, kept as the baseline of lstmStep(). Each gate has its own input weight, hidden
+     * weight and bias, back to back, so the forward pass takes two dot products per unit and gate, and the backward pass walks the
+     * gates one by one for the weight gradient and for dX and dH. Starts from the parameters of a stacked LSTM and computes the same step.
+     */
+    private static class PerGateLSTM{
+
+        private int numUnits;
+        private int inputSize;
+        private int gateSize;
+
+        private float[] params;
+        private float[] gradient;
+
+        private float[] x;
+        private float[] h;
+        private float[] c;
+        private float[] nextC;
+        private float[] nextH;
+        private float[] dY;
+        private float[] dX;
+        private float[] dH;
+
+        //Per gate sums, activations, activation derivatives and deltas, in the stacked order
+        private float[] sums;
+        private float[] gates;
+        private float[] derivatives;
+        private float[] deltas;
+
+        private float[] tanhC;
+        private float[] tanhCDerivative;
+
+        private PerGateLSTM(LSTM layer){
+            int u = layer.outputVector.length;
+            int n = layer.getTensorCols(0);
+
+            this.numUnits = u;
+            this.inputSize = n - u;
+            this.gateSize = u * this.inputSize + u * u + u;
+
+            this.params = new float[4 * this.gateSize];
+            this.gradient = new float[this.params.length];
+
+            //Stacked row r = g * u + i holds [input weight row; hidden weight row] of unit i in gate g
+            for(int g = 0; g < 4; g++){
+                int base = g * this.gateSize;
+
+                for(int i = 0; i < u; i++){
+                    int row = (g * u + i) * n;
+
+                    System.arraycopy(layer.parameters, row, this.params, base + i * this.inputSize, this.inputSize);
+                    System.arraycopy(layer.parameters, row + this.inputSize, this.params, base + u * this.inputSize + i * u, u);
+                    this.params[base + u * this.inputSize + u * u + i] = layer.parameters[layer.getTensorOffset(1) + g * u + i];
+                }
+            }
+
+            this.x = layer.inputVector.clone();
+            this.h = layer.currentHState.clone();
+            this.c = layer.currentCState.clone();
+            this.dY = layer.dObjectivedY.clone();
+
+            this.nextC = new float[u];
+            this.nextH = new float[u];
+            this.dX = new float[this.inputSize];
+            this.dH = new float[u];
+
+            this.sums = new float[4 * u];
+            this.gates = new float[4 * u];
+            this.derivatives = new float[4 * u];
+            this.deltas = new float[4 * u];
+
+            this.tanhC = new float[u];
+            this.tanhCDerivative = new float[u];
+        }
+
+        private void forwardPass(){
+            int u = this.numUnits;
+            int in = this.inputSize;
+
+            for(int g = 0; g < 4; g++){
+                int base = g * this.gateSize;
+
+                for(int i = 0; i < u; i++){
+                    this.sums[g * u + i] = Layer.KERNELS.dot(this.params, base + i * in, this.x, 0, in)
+                        + Layer.KERNELS.dot(this.params, base + u * in + i * u, this.h, 0, u)
+                        + this.params[base + u * in + u * u + i];
+                }
+            }
+
+            Activation.SIGMOID.apply(this.sums, this.gates, this.derivatives, 0, 3 * u);
+            Activation.TANH.apply(this.sums, this.gates, this.derivatives, 3 * u, 4 * u);
+
+            for(int i = 0; i < u; i++){
+                this.nextC[i] = this.gates[i] * this.c[i] + this.gates[u + i] * this.gates[3 * u + i];
+            }
+
+            Activation.TANH.apply(this.nextC, this.tanhC, this.tanhCDerivative, 0, u);
+
+            for(int i = 0; i < u; i++){
+                this.nextH[i] = this.gates[2 * u + i] * this.tanhC[i];
+            }
+        }
+
+        private void backwardPass(){
+            int u = this.numUnits;
+            int in = this.inputSize;
+
+            for(int i = 0; i < u; i++){
+                float dC = this.dY[i] * this.gates[2 * u + i] * this.tanhCDerivative[i];
+
+                this.deltas[i] = dC * this.c[i] * this.derivatives[i];
+                this.deltas[u + i] = dC * this.gates[3 * u + i] * this.derivatives[u + i];
+                this.deltas[2 * u + i] = this.dY[i] * this.tanhC[i] * this.derivatives[2 * u + i];
+                this.deltas[3 * u + i] = dC * this.gates[u + i] * this.derivatives[3 * u + i];
+            }
+
+            Arrays.fill(this.dX, 0f);
+            Arrays.fill(this.dH, 0f);
+
+            for(int g = 0; g < 4; g++){
+                int base = g * this.gateSize;
+
+                for(int i = 0; i < u; i++){
+                    float delta = this.deltas[g * u + i];
+                    int inputRow = base + i * in;
+                    int hiddenRow = base + u * in + i * u;
+
+                    Layer.KERNELS.scale(delta, this.x, 0, this.gradient, inputRow, in);
+                    Layer.KERNELS.scale(delta, this.h, 0, this.gradient, hiddenRow, u);
+                    this.gradient[base + u * in + u * u + i] = delta;
+
+                    Layer.KERNELS.axpy(delta, this.params, inputRow, this.dX, 0, in);
+                    Layer.KERNELS.axpy(delta, this.params, hiddenRow, this.dH, 0, u);
+                }
+            }
+        }
+
+        private void applyGradient(float scalar){
+            Layer.KERNELS.axpy(scalar, this.gradient, 0, this.params, 0, this.params.length);
+        }
+    }
+}
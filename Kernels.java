@@ -0,0 +1,148 @@
+/**
+ * The float loops the layers spend their time in. Two backends exist: ScalarKernels, plain Java loops that work everywhere,
+ * and VectorKernels, built on the jdk.incubator.vector API. The backend is chosen once at class initialization:
+ * VectorKernels when the incubator module is present (java --add-modules jdk.incubator.vector) and the class was compiled
+ * into the class path (see vector/VectorKernels.java), otherwise ScalarKernels.
+ * -Drl_gc.kernels=scalar forces the scalar backend, -Drl_gc.kernels=vector fails fast if the vector backend is unavailable.
+ */
+public abstract class Kernels{
+
+    private static final Kernels INSTANCE = Kernels.create();
+
+    public static Kernels get(){
+        return Kernels.INSTANCE;
+    }
+
+    /**
+     * Short backend name, e.g. for logging.
+     */
+    public abstract String getName();
+
+    /**
+     * Returns the sum of a[aOffset + i] * b[bOffset + i] for i in [0, n).
+     */
+    public abstract float dot(float[] a, int aOffset, float[] b, int bOffset, int n);
+
+    /**
+     * dest[destOffset + i] = scale * x[xOffset + i] for i in [0, n), i.e. one row of the outer product of a delta vector and x.
+     */
+    public abstract void scale(float scale, float[] x, int xOffset, float[] dest, int destOffset, int n);
+
+    /**
+     * y[yOffset + i] += a * x[xOffset + i] for i in [0, n).
+     */
+    public abstract void axpy(float a, float[] x, int xOffset, float[] y, int yOffset, int n);
+
+    /**
+     * Four dot products of b against the rows of a at a0..a3, written to out[outOffset..outOffset + 3]. Each value of b is loaded once
+     * for all four rows, which is what makes the batched layer kernels cheaper than four separate dot() calls.
+     */
+    public abstract void dot4(float[] a, int a0, int a1, int a2, int a3, float[] b, int bOffset, int n, float[] out, int outOffset);
+
+    /**
+     * y[yOffset + i] += c0 * x[x0 + i] + c1 * x[x1 + i] + c2 * x[x2 + i] + c3 * x[x3 + i] for i in [0, n), one pass over y for four axpys.
+     */
+    public abstract void axpy4(float c0, float c1, float c2, float c3, float[] x, int x0, int x1, int x2, int x3, float[] y, int yOffset, int n);
+
+    /**
+     * Returns the sum of a[aOffset + i] * b[bOffset + i] for i in [0, n), accumulated in int (the int8 mat-vec of QuantizedDense).
+     * b holds int8 values already widened to int: it is reused for every row, so only a needs widening per call.
+     */
+    public abstract int dotInt8(byte[] a, int aOffset, int[] b, int bOffset, int n);
+
+    /**
+     * dot() with a holding half floats (see floatToHalf()). The values of a must be finite.
+     */
+    public abstract float dotHalf(short[] a, int aOffset, float[] b, int bOffset, int n);
+
+    /**
+     * Rounds to the nearest half float (ties to even), saturating to infinity and flushing values below the subnormal range to zero.
+     */
+    static short floatToHalf(float value){
+        int bits = Float.floatToRawIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = ((bits >>> 23) & 0xFF) - 127 + 15;
+        int mantissa = bits & 0x7FFFFF;
+
+        if(((bits >>> 23) & 0xFF) == 0xFF){
+            //Infinity or NaN
+            return (short)(sign | 0x7C00 | (mantissa != 0 ? 0x200 : 0));
+        }
+
+        if(exponent >= 0x1F){
+            return (short)(sign | 0x7C00);
+        }
+
+        if(exponent <= 0){
+            if(exponent < -10){
+                return (short)sign;
+            }
+
+            //Subnormal: shift the mantissa (with its implicit bit) into place and round
+            mantissa |= 0x800000;
+            int shift = 14 - exponent;
+            int half = mantissa >> shift;
+            int remainder = mantissa & ((1 << shift) - 1);
+            int midpoint = 1 << (shift - 1);
+
+            if(remainder > midpoint || (remainder == midpoint && (half & 1) != 0)){
+                half++;
+            }
+
+            return (short)(sign | half);
+        }
+
+        int half = (exponent << 10) | (mantissa >> 13);
+        int remainder = mantissa & 0x1FFF;
+
+        //A carry out of the mantissa correctly bumps the exponent (up to infinity)
+        if(remainder > 0x1000 || (remainder == 0x1000 && (half & 1) != 0)){
+            half++;
+        }
+
+        return (short)(sign | half);
+    }
+
+    static float halfToFloat(short half){
+        int h = half & 0xFFFF;
+        int sign = (h & 0x8000) << 16;
+        int exponent = (h >>> 10) & 0x1F;
+        int mantissa = h & 0x3FF;
+
+        if(exponent == 0x1F){
+            return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+        }
+
+        if(exponent == 0){
+            //Zero or subnormal: mantissa * 2^-24
+            float magnitude = mantissa * 5.9604645e-8f;
+            return sign != 0 ? -magnitude : magnitude;
+        }
+
+        return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+    }
+
+    private static Kernels create(){
+        String requested = System.getProperty("rl_gc.kernels", "auto");
+
+        if(requested.equals("scalar")){
+            return new ScalarKernels();
+        }
+
+        boolean moduleLoaded = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+        if(moduleLoaded){
+            try{
+                return (Kernels)Class.forName("VectorKernels").getDeclaredConstructor().newInstance();
+            } catch(ReflectiveOperationException | LinkageError exception){
+                if(requested.equals("vector")){
+                    throw new IllegalStateException("The vector kernels could not be loaded", exception);
+                }
+            }
+        } else if(requested.equals("vector")){
+            throw new IllegalStateException("The vector kernels need java --add-modules jdk.incubator.vector");
+        }
+
+        return new ScalarKernels();
+    }
+}
@@ -1,38 +1,85 @@
-
-
-
+import java.util.Arrays;
+
+/**
+ * Long short-term memory layer. The four gates share one stacked 4 * numUnits x (inputSize + numUnits) weight (tensor 0) and one
+ * stacked 4 * numUnits x 1 bias (tensor 1), with the rows of the forget, input and output gates and the cell candidate in that order.
+ * A forward step is a single mat-vec over the concatenation [x; h] followed by one elementwise pass per activation, and the backward
+ * pass mirrors it: one set of gate deltas, one outer product for the weight gradient and one row streaming pass for d[x; h].
+ *
+ * forwardPass() reads inputVector, currentHState and currentCState and writes nextCState, nextHState and outputVector (= nextHState);
+ * updateState() then advances the state. The batched passes apply the current state to every sample of the batch and leave it alone,
+ * running the gates of the whole batch as one [batchSize x (in + u)] x [(in + u) x 4u] product over the stacked weight.
+ */
 public class LSTM extends Layer{
 
+    //Row blocks of the stacked weight and bias
+    private static final int FORGET = 0;
+    private static final int INPUT = 1;
+    private static final int OUTPUT = 2;
+    private static final int CELL = 3;
+
     public float[] currentCState;
     public float[] currentHState;
 
     public float[] nextCState;
     public float[] nextHState;
 
+    //Gradient wrt nextCState coming from later steps, added in by backwardPass(). Zero unless the caller backpropagates through time.
+    public float[] dObjectivedNextC;
+
+    //Gradients wrt currentHState and currentCState, written by backwardPass()
+    public float[] dObjectivedPrevH;
+    public float[] dObjectivedPrevC;
+
+    private int numUnits;
+    private int concatSize;
 
-    private float[] dObjdO;
-    private float[] dOdTanhC;
-    private float[] dObjdC;
-    private float[] dObjdF;
-    private float[] dObjdI;
-    private float[] dObjdCellOutput;
+    //[x; h] of the last forward pass
+    private float[] concat;
 
-    private float[] outputGateVector;
-    private float[] cellOutputVector;
-    private float[] inputGateVector;
+    //Gate sums, activated in place by forwardPass(), and the activation derivatives
+    private float[] gates;
+    private float[] gateDerivatives;
 
-    private float[] fSum;
-    private float[] iSum;
-    private float[] oSum;
+    //Activation of nextCState and its derivative
+    private float[] tanhC;
+    private float[] tanhCDerivative;
 
-    //"Fancy C"
-    private float[] cellActivationSum;
+    //dObjective/dSum for each of the 4 * numUnits stacked rows
+    private float[] gateDeltas;
+
+    //dObjective/d[x; h]
+    private float[] dObjdConcat;
+
+    //Sigmoid for the gates and tanh for the cell, or their fast approximations
+    private Activation gateActivation;
+    private Activation cellActivation;
+
+    //Batched passes, batchSize rows each: [x; h], gate activations and derivatives, next cell state and its activation,
+    //gate deltas and d[x; h]
+    private float[] batchConcat;
+    private float[] batchGates;
+    private float[] batchGateDerivatives;
+    private float[] batchNextC;
+    private float[] batchTanhC;
+    private float[] batchTanhCDerivative;
+    private float[] batchGateDeltas;
+    private float[] batchDObjdConcat;
+
+    //Row and column partitioned kernels, see ParallelLoop
+    private ParallelLoop gateLoop;
+    private ParallelLoop weightGradientLoop;
+    private ParallelLoop concatGradientLoop;
+    private ParallelLoop applyLoop;
+    private float applyScalar;
 
     public LSTM(int numUnits, int inputSize){
         super();
 
-        //Create arrays for forward pass
+        this.numUnits = numUnits;
+        this.concatSize = inputSize + numUnits;
 
+        //Create arrays for forward pass
         this.inputVector = new float[inputSize];
         this.outputVector = new float[numUnits];
 
@@ -42,327 +89,288 @@ public class LSTM extends Layer{
         this.currentHState = new float[numUnits];
         this.nextHState = new float[numUnits];
 
-        this.outputGateVector = new float[numUnits];
-        this.cellOutputVector = new float[numUnits];
-        this.inputGateVector = new float[numUnits];
+        this.concat = new float[this.concatSize];
+        this.gates = new float[4 * numUnits];
+        this.gateDerivatives = new float[4 * numUnits];
+        this.tanhC = new float[numUnits];
+        this.tanhCDerivative = new float[numUnits];
 
-        this.fSum = new float[numUnits];
-        this.iSum = new float[numUnits];
-        this.oSum = new float[numUnits];
-        this.cellActivationSum = new float[numUnits];
-        
+        this.gateActivation = Activation.SIGMOID;
+        this.cellActivation = Activation.TANH;
 
         //Create backprop arrays
         this.dObjectivedX = new float[inputSize];
         this.dObjectivedY = new float[numUnits];
 
+        this.dObjectivedNextC = new float[numUnits];
+        this.dObjectivedPrevH = new float[numUnits];
+        this.dObjectivedPrevC = new float[numUnits];
 
-        //create parameter arrays
-        //Forget gate (input weight, hidden weight, bias)
-        this.parameters.add(new float[numUnits][inputSize]);
-        this.parameters.add(new float[numUnits][numUnits]);
-        this.parameters.add(new float[numUnits][1]);
-
-        //update gate (input weight, hidden weight, bias)
-        this.parameters.add(new float[numUnits][inputSize]);
-        this.parameters.add(new float[numUnits][numUnits]);
-        this.parameters.add(new float[numUnits][1]);
-
-        //output gate (input weight, hidden weight, bias)
-        this.parameters.add(new float[numUnits][inputSize]);
-        this.parameters.add(new float[numUnits][numUnits]);
-        this.parameters.add(new float[numUnits][1]);
-
-        //cell activation (input weight, hidden weight, bias)
-        this.parameters.add(new float[numUnits][inputSize]);
-        this.parameters.add(new float[numUnits][numUnits]);
-        this.parameters.add(new float[numUnits][1]);
-
-        
-        //Create gradient arrays
-        for(int i = 0; i < this.parameters.size(); i++){
-            float[][] array = new float[this.parameters.get(i).length][this.parameters.get(i)[0].length];
-            this.gradient.add(array);
-        }
-
-        //Create vectors to help with gradient calculation
-        this.dObjdO = new float[this.outputVector.length];
-        this.dOdTanhC = new float[this.outputVector.length];
-        this.dObjdC = new float[this.outputVector.length];
-        this.dObjdF = new float[this.outputVector.length];
-        this.dObjdCellOutput = new float[this.outputVector.length];
-        this.dObjdI = new float[this.outputVector.length];
+        this.gateDeltas = new float[4 * numUnits];
+        this.dObjdConcat = new float[this.concatSize];
 
+        //Stacked weight and bias (and their gradients)
+        this.allocateParameters(4 * numUnits, this.concatSize, 4 * numUnits, 1);
 
         this.populateParams(-0.1f, 0.1f);
-    }
-
 
+        this.gateLoop = new ParallelLoop(this::gateRows);
+        this.weightGradientLoop = new ParallelLoop(this::weightGradientRows);
+        this.concatGradientLoop = new ParallelLoop((start, end) -> this.concatGradient(start, end, false));
+        this.applyLoop = new ParallelLoop((start, end) -> this.concatGradient(start, end, true));
+    }
 
+    @Override
     public void forwardPass(){
+        int u = this.numUnits;
+        int inputSize = this.inputVector.length;
 
-        //Forget gate
-        float[][] inputWeight = this.parameters.get(0);
-        float[][] hiddenWeight = this.parameters.get(1);
-        float[][] bias = this.parameters.get(2);
-
-        for(int i = 0; i < this.fSum.length; i++){
-            float sum = 0;
-
-            sum += this.dot(inputWeight[i], this.inputVector);
-            sum += this.dot(hiddenWeight[i], this.currentHState);
-            sum += bias[i][0];
-
-            this.fSum[i] = sum;
-        }
+        System.arraycopy(this.inputVector, 0, this.concat, 0, inputSize);
+        System.arraycopy(this.currentHState, 0, this.concat, inputSize, u);
 
+        //All four gates in one mat-vec
+        this.gateLoop.run(4 * u, this.concatSize);
 
-        //Input gate
-        inputWeight = this.parameters.get(3);
-        hiddenWeight = this.parameters.get(4);
-        bias = this.parameters.get(5);
+        //Activations, keeping their derivatives for the backward pass
+        this.gateActivation.apply(this.gates, this.gates, this.gateDerivatives, 0, CELL * u);
+        this.cellActivation.apply(this.gates, this.gates, this.gateDerivatives, CELL * u, 4 * u);
 
-        for(int i = 0; i < this.iSum.length; i++){
-            float sum = 0;
-
-            sum += this.dot(inputWeight[i], this.inputVector);
-            sum += this.dot(hiddenWeight[i], this.currentHState);
-            sum += bias[i][0];
-
-            this.iSum[i] = sum;
+        //Cell state, hidden state, output vector
+        for(int i = 0; i < u; i++){
+            this.nextCState[i] = this.gates[FORGET * u + i] * this.currentCState[i] + this.gates[INPUT * u + i] * this.gates[CELL * u + i];
         }
 
-        //Output gate
-        inputWeight = this.parameters.get(6);
-        hiddenWeight = this.parameters.get(7);
-        bias = this.parameters.get(8);
-
-        for(int i = 0; i < this.oSum.length; i++){
-            float sum = 0;
-
-            sum += this.dot(inputWeight[i], this.inputVector);
-            sum += this.dot(hiddenWeight[i], this.currentHState);
-            sum += bias[i][0];
+        this.cellActivation.apply(this.nextCState, this.tanhC, this.tanhCDerivative, 0, u);
 
-            this.oSum[i] = sum;
+        for(int i = 0; i < u; i++){
+            this.nextHState[i] = this.gates[OUTPUT * u + i] * this.tanhC[i];
         }
 
-        //Cell activation
-        inputWeight = this.parameters.get(9);
-        hiddenWeight = this.parameters.get(10);
-        bias = this.parameters.get(11);
+        System.arraycopy(this.nextHState, 0, this.outputVector, 0, u);
+    }
 
-        for(int i = 0; i < this.cellActivationSum.length; i++){
-            float sum = 0;
+    /**
+     * gates[r] = weight[r] . [x; h] + bias[r] for stacked rows [start, end), four rows per pass over [x; h].
+     */
+    private void gateRows(int start, int end){
+        float[] params = this.parameters;
+        int n = this.concatSize;
+        int biasOffset = this.tensorOffsets[1];
 
-            sum += this.dot(inputWeight[i], this.inputVector);
-            sum += this.dot(hiddenWeight[i], this.currentHState);
-            sum += bias[i][0];
+        int r = start;
+        for(; r + 4 <= end; r += 4){
+            int row = r * n;
 
-            this.cellActivationSum[i] = sum;
+            Layer.KERNELS.dot4(params, row, row + n, row + 2 * n, row + 3 * n, this.concat, 0, n, this.gates, r);
         }
-
-
-        //Cell state, hidden state, output vector
-        for(int i = 0; i < this.currentCState.length; i++){
-            float f = (float)Math.tanh((double)this.fSum[i]);
-            float input = sigmoid(this.iSum[i]);
-            float cActivation = LSTM.tanh(this.cellActivationSum[i]);
-
-            this.nextCState[i] = f * this.currentCState[i] + input * cActivation;
-
-            this.nextHState[i] = this.sigmoid(this.oSum[i]) * LSTM.tanh(this.currentCState[i]);
-
-            this.outputVector[i] = this.currentHState[i];
+        for(; r < end; r++){
+            this.gates[r] = Layer.KERNELS.dot(params, r * n, this.concat, 0, n);
         }
 
-
-
+        Layer.KERNELS.axpy(1f, params, biasOffset + start, this.gates, start, end - start);
     }
 
-
+    @Override
     public void backwardPass(){
-        //Assume dObjdY is populated correctly. Calculate dObjdO
-        for(int i = 0; i < this.dObjdO.length; i++){
-            this.dObjdO[i] = this.dObjectivedY[i] * (float)Math.tanh((double)this.currentCState[i]);
-        }
+        float[] grad = this.getGradient();
 
-        //Calculate dObjdTanhC
-        for(int i = 0; i < this.dOdTanhC.length; i++){
-            this.dOdTanhC[i] = this.dObjectivedY[i] * this.outputGateVector[i];
-        }
+        this.computeGateDeltas();
+        System.arraycopy(this.gateDeltas, 0, grad, this.tensorOffsets[1], this.gateDeltas.length);
 
-        //Calculate dObjdC
-        for(int i = 0; i < this.dObjdC.length; i++){
-            this.dObjdC[i] = this.dOdTanhC[i] * this.tanhPrime(this.currentCState[i]);
-        }
+        this.weightGradientLoop.run(this.gateDeltas.length, this.concatSize);
+        this.concatGradientLoop.run(this.concatSize, this.gateDeltas.length);
 
-        //Calculate dObjdF
-        for(int i = 0; i < this.dObjdF.length; i++){
-            this.dObjdF[i] = this.dObjdC[i] * this.currentCState[i];
-        }
+        this.splitConcatGradient();
+    }
 
-        //Calculate dObjdI
-        for(int i = 0; i < this.dObjdI.length; i++){
-            this.dObjdI[i] = this.dObjdC[i] * this.cellOutputVector[i];
-        }
+    @Override
+    public void backwardAndApply(float scalar){
+        this.computeGateDeltas();
 
-        //Calculate dObjdCellOutput
-        for(int i = 0; i < this.dObjdCellOutput.length; i++){
-            this.dObjdCellOutput[i] = this.dObjdC[i] * this.inputGateVector[i];
-        }
+        this.applyScalar = scalar;
+        this.applyLoop.run(this.concatSize, this.gateDeltas.length);
 
-        //All helper arrays calculated. Calculate gradient wrt params
-        //Forget gate (input weight, hidden weight, bias)
-        float[][] inputWeightGradient = this.gradient.get(0);
+        Layer.KERNELS.axpy(scalar, this.gateDeltas, 0, this.parameters, this.tensorOffsets[1], this.gateDeltas.length);
 
-        for(int r = 0; r < inputWeightGradient.length; r++){
-            for(int c = 0; c < inputWeightGradient[r].length; c++){
-                inputWeightGradient[r][c] = this.dObjdF[r] * this.sigmoidPrime(this.fSum[r]) * this.inputVector[c];
-            }
-        }
+        this.splitConcatGradient();
+    }
 
+    /**
+     * Elementwise part of the backward pass: gateDeltas from dObjectivedY and dObjectivedNextC, plus dObjectivedPrevC.
+     */
+    private void computeGateDeltas(){
+        int u = this.numUnits;
 
+        for(int i = 0; i < u; i++){
+            float dH = this.dObjectivedY[i];
+            float o = this.gates[OUTPUT * u + i];
+            float dC = dH * o * this.tanhCDerivative[i] + this.dObjectivedNextC[i];
 
-        float[][] hiddenWeightGradient = this.gradient.get(1);
+            this.gateDeltas[FORGET * u + i] = dC * this.currentCState[i] * this.gateDerivatives[FORGET * u + i];
+            this.gateDeltas[INPUT * u + i] = dC * this.gates[CELL * u + i] * this.gateDerivatives[INPUT * u + i];
+            this.gateDeltas[OUTPUT * u + i] = dH * this.tanhC[i] * this.gateDerivatives[OUTPUT * u + i];
+            this.gateDeltas[CELL * u + i] = dC * this.gates[INPUT * u + i] * this.gateDerivatives[CELL * u + i];
 
-        for(int r = 0; r < hiddenWeightGradient.length; r++){
-            for(int c = 0; c < hiddenWeightGradient[r].length; c++){
-                hiddenWeightGradient[r][c] = this.dObjdF[r] * this.sigmoidPrime(this.fSum[r]) * this.currentHState[c];
-            }
+            this.dObjectivedPrevC[i] = dC * this.gates[FORGET * u + i];
         }
+    }
 
+    /**
+     * Weight gradient rows [start, end): row r is gateDeltas[r] * [x; h].
+     */
+    private void weightGradientRows(int start, int end){
+        float[] grad = this.gradient;
+        int n = this.concatSize;
 
-
-        float[][] biasGradient = this.gradient.get(2);
-
-        for(int r = 0; r < biasGradient.length; r++){
-            biasGradient[r][0] = this.dObjdF[r] * this.sigmoidPrime(this.fSum[r]);
+        for(int r = start; r < end; r++){
+            Layer.KERNELS.scale(this.gateDeltas[r], this.concat, 0, grad, r * n, n);
         }
+    }
 
+    /**
+     * dObjdConcat[c] = sum over rows of gateDeltas[r] * weight[r][c] for columns [start, end), streaming the weight rows.
+     * With apply set, each row slice is then updated by applyScalar * gateDeltas[r] * [x; h], after it was read.
+     */
+    private void concatGradient(int start, int end, boolean apply){
+        float[] params = this.parameters;
+        int n = this.concatSize;
 
-        
-        //Input gate (input weight, hidden weight, bias)
-        inputWeightGradient = this.gradient.get(3);
-
-        for(int r = 0; r < inputWeightGradient.length; r++){
-            for(int c = 0; c < inputWeightGradient[r].length; c++){
-                inputWeightGradient[r][c] = this.dObjdI[r] * this.sigmoidPrime(this.iSum[r]) * this.inputVector[c];
-            }
-        }
+        Arrays.fill(this.dObjdConcat, start, end, 0f);
+        for(int r = 0; r < this.gateDeltas.length; r++){
+            int row = r * n;
 
+            Layer.KERNELS.axpy(this.gateDeltas[r], params, row + start, this.dObjdConcat, start, end - start);
 
-        hiddenWeightGradient = this.gradient.get(4);
-
-        for(int r = 0; r < hiddenWeightGradient.length; r++){
-            for(int c = 0; c < hiddenWeightGradient[r].length; c++){
-                hiddenWeightGradient[r][c] = this.dObjdI[r] * this.sigmoidPrime(this.iSum[r]) * this.currentHState[c];
+            if(apply){
+                Layer.KERNELS.axpy(this.applyScalar * this.gateDeltas[r], this.concat, start, params, row + start, end - start);
             }
         }
+    }
 
+    private void splitConcatGradient(){
+        int inputSize = this.inputVector.length;
 
-        biasGradient = this.gradient.get(5);
+        System.arraycopy(this.dObjdConcat, 0, this.dObjectivedX, 0, inputSize);
+        System.arraycopy(this.dObjdConcat, inputSize, this.dObjectivedPrevH, 0, this.numUnits);
+    }
 
-        for(int r = 0; r < biasGradient.length; r++){
-            biasGradient[r][0] = this.dObjdF[r] * this.sigmoidPrime(this.iSum[r]);
+    @Override
+    public float[] forwardBatch(float[] input, int batchSize){
+        int u = this.numUnits;
+        int inputSize = this.inputVector.length;
+        int n = this.concatSize;
+
+        this.batchConcat = Layer.ensureCapacity(this.batchConcat, batchSize * n);
+        this.batchGates = Layer.ensureCapacity(this.batchGates, batchSize * 4 * u);
+        this.batchGateDerivatives = Layer.ensureCapacity(this.batchGateDerivatives, batchSize * 4 * u);
+        this.batchNextC = Layer.ensureCapacity(this.batchNextC, batchSize * u);
+        this.batchTanhC = Layer.ensureCapacity(this.batchTanhC, batchSize * u);
+        this.batchTanhCDerivative = Layer.ensureCapacity(this.batchTanhCDerivative, batchSize * u);
+        this.batchOutput = Layer.ensureCapacity(this.batchOutput, batchSize * u);
+
+        for(int b = 0; b < batchSize; b++){
+            System.arraycopy(input, b * inputSize, this.batchConcat, b * n, inputSize);
+            System.arraycopy(this.currentHState, 0, this.batchConcat, b * n + inputSize, u);
         }
 
-        //Output gate (input weight, hidden weight, bias)
-
-        inputWeightGradient = this.gradient.get(6);
-
-        for(int r = 0; r < inputWeightGradient.length; r++){
-            for(int c = 0; c < inputWeightGradient[r].length; c++){
-                inputWeightGradient[r][c] = this.dObjdO[r] * this.sigmoidPrime(this.oSum[r]) * this.inputVector[c];
-            }
-        }
+        //The stacked weight and bias have the dense layout, and denseBackwardBatch() takes the weight gradient from [x; h]
+        this.batchInput = this.batchConcat;
+        this.batchSize = batchSize;
+        this.denseForwardBatch(this.batchConcat, batchSize, this.batchGates);
 
+        for(int b = 0; b < batchSize; b++){
+            int g = b * 4 * u;
 
-        hiddenWeightGradient = this.gradient.get(7);
+            this.gateActivation.apply(this.batchGates, this.batchGates, this.batchGateDerivatives, g, g + CELL * u);
+            this.cellActivation.apply(this.batchGates, this.batchGates, this.batchGateDerivatives, g + CELL * u, g + 4 * u);
 
-        for(int r = 0; r < hiddenWeightGradient.length; r++){
-            for(int c = 0; c < hiddenWeightGradient[r].length; c++){
-                hiddenWeightGradient[r][c] = this.dObjdO[r] * this.sigmoidPrime(this.oSum[r]) * this.currentHState[c];
+            for(int i = 0; i < u; i++){
+                this.batchNextC[b * u + i] = this.batchGates[g + FORGET * u + i] * this.currentCState[i]
+                    + this.batchGates[g + INPUT * u + i] * this.batchGates[g + CELL * u + i];
             }
         }
 
+        this.cellActivation.apply(this.batchNextC, this.batchTanhC, this.batchTanhCDerivative, 0, batchSize * u);
 
-        biasGradient = this.gradient.get(8);
+        for(int b = 0; b < batchSize; b++){
+            int g = b * 4 * u;
 
-        for(int r = 0; r < biasGradient.length; r++){
-            biasGradient[r][0] = this.dObjdO[r] * this.sigmoidPrime(this.oSum[r]);
-        }
-
-
-        //Cell activation gate (input weight, hidden weight, bias)
-
-        inputWeightGradient = this.gradient.get(9);
-
-        for(int r = 0; r < inputWeightGradient.length; r++){
-            for(int c = 0; c < inputWeightGradient[r].length; c++){
-                inputWeightGradient[r][c] = this.dObjdCellOutput[r] * this.tanhPrime(this.cellActivationSum[r]) * this.inputVector[c];
+            for(int i = 0; i < u; i++){
+                this.batchOutput[b * u + i] = this.batchGates[g + OUTPUT * u + i] * this.batchTanhC[b * u + i];
             }
         }
 
+        return this.batchOutput;
+    }
 
-        hiddenWeightGradient = this.gradient.get(10);
-
-        for(int r = 0; r < hiddenWeightGradient.length; r++){
-            for(int c = 0; c < hiddenWeightGradient[r].length; c++){
-                hiddenWeightGradient[r][c] = this.dObjdCellOutput[r] * this.tanhPrime(this.cellActivationSum[r]) * this.currentHState[c];
+    /**
+     * Batched backward pass, with dObjectivedNextC added to every sample's cell gradient like backwardPass() does. The gradients wrt
+     * the state are not produced; the gradient is the sum over the batch.
+     */
+    @Override
+    public float[] backwardBatch(float[] dObjdY, int batchSize){
+        int u = this.numUnits;
+        int inputSize = this.inputVector.length;
+        int n = this.concatSize;
+
+        this.batchGateDeltas = Layer.ensureCapacity(this.batchGateDeltas, batchSize * 4 * u);
+        this.batchDObjdConcat = Layer.ensureCapacity(this.batchDObjdConcat, batchSize * n);
+        this.batchDObjectivedX = Layer.ensureCapacity(this.batchDObjectivedX, batchSize * inputSize);
+
+        for(int b = 0; b < batchSize; b++){
+            int g = b * 4 * u;
+
+            for(int i = 0; i < u; i++){
+                float dH = dObjdY[b * u + i];
+                float dC = dH * this.batchGates[g + OUTPUT * u + i] * this.batchTanhCDerivative[b * u + i] + this.dObjectivedNextC[i];
+
+                this.batchGateDeltas[g + FORGET * u + i] = dC * this.currentCState[i] * this.batchGateDerivatives[g + FORGET * u + i];
+                this.batchGateDeltas[g + INPUT * u + i] = dC * this.batchGates[g + CELL * u + i] * this.batchGateDerivatives[g + INPUT * u + i];
+                this.batchGateDeltas[g + OUTPUT * u + i] = dH * this.batchTanhC[b * u + i] * this.batchGateDerivatives[g + OUTPUT * u + i];
+                this.batchGateDeltas[g + CELL * u + i] = dC * this.batchGates[g + INPUT * u + i] * this.batchGateDerivatives[g + CELL * u + i];
             }
         }
 
+        this.denseBackwardBatch(this.batchGateDeltas, batchSize, this.batchDObjdConcat);
 
-        biasGradient = this.gradient.get(11);
-
-        for(int r = 0; r < biasGradient.length; r++){
-            biasGradient[r][0] = this.dObjdCellOutput[r] * this.tanhPrime(this.cellActivationSum[r]);
+        for(int b = 0; b < batchSize; b++){
+            System.arraycopy(this.batchDObjdConcat, b * n, this.batchDObjectivedX, b * inputSize, inputSize);
         }
 
-        //Populate the dObjdX array
-
-        for(int i = 0; i < this.dObjectivedX.length; i++){
-            float sum = 0;
-
-            //Visit each of the gates an use the weight array to update the gradient of the ith component of the input array
-            float[][] weights = null;
+        return this.batchDObjectivedX;
+    }
 
-            for(int j = 0; j < this.gradient.size(); j+=3){
-                weights = this.gradient.get(j);
-                for(int r = 0; r < weights.length; r++){
-                    sum += weights[r][i];
-                }
-            }
-
-            this.dObjectivedX[i] = sum;
-        }
+    @Override
+    public Layer duplicate(){
+        LSTM copy = new LSTM(this.numUnits, this.inputVector.length);
+        copy.setActivations(this.gateActivation, this.cellActivation);
+        copy.copyParametersFrom(this);
 
+        GCAgent.copyArrayContents(this.currentCState, copy.currentCState);
+        GCAgent.copyArrayContents(this.currentHState, copy.currentHState);
 
+        return copy;
     }
 
     public void updateState(){
-
         GCAgent.copyArrayContents(this.nextCState, this.currentCState);
         GCAgent.copyArrayContents(this.nextHState, this.currentHState);
     }
 
-    public static float tanh(float x){
-        return (float)Math.tanh((double)x);
-    }
-
-    public static float tanhPrime(float x){
-        return (float)(1.0 - ((Math.tanh((double)x)) * (Math.tanh((double)x))));
-    }
-
-    private float sigmoid(float x){
-        double s = 1.0 / (1 + Math.exp((double)-x));
-
-        return (float)s;
+    /**
+     * Clears the hidden and cell state, e.g. at the start of an episode.
+     */
+    public void resetState(){
+        Arrays.fill(this.currentCState, 0f);
+        Arrays.fill(this.currentHState, 0f);
     }
 
-    private float sigmoidPrime(float x){
-        return this.sigmoid(x) * (1 - this.sigmoid(x));
+    /**
+     * Sets the gate (normally SIGMOID) and cell (normally TANH) activations, e.g. to FAST_SIGMOID and FAST_TANH.
+     */
+    public void setActivations(Activation gateActivation, Activation cellActivation){
+        this.gateActivation = gateActivation;
+        this.cellActivation = cellActivation;
     }
 
 }
\ No newline at end of file
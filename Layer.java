@@ -1,63 +1,382 @@
-import java.util.ArrayList;
+import java.util.Arrays;
 
 public abstract class Layer{
 
+    //Backend for the inner loops, chosen once at startup
+    protected static final Kernels KERNELS = Kernels.get();
+
+    //Weight rows per block in the batched kernels: a block stays in cache while all samples of the batch pass through it
+    protected static final int BLOCK_ROWS = 32;
+
     protected float[] dObjectivedY;
     protected float[] dObjectivedX;
 
     protected float[] inputVector;
     protected float[] outputVector;
 
-    protected ArrayList<float[][]> parameters;
-    protected ArrayList<float[][]> gradient;
+    //All parameter tensors of the layer, back to back in row major order. Tensor i is the
+    //tensorRows[i] x tensorCols[i] matrix starting at tensorOffsets[i]; gradient uses the same layout.
+    //gradient is only allocated by the first backwardPass(), so layers trained with backwardAndApply() never hold one.
+    protected float[] parameters;
+    protected float[] gradient;
+
+    protected int[] tensorOffsets;
+    protected int[] tensorRows;
+    protected int[] tensorCols;
+
+    //Batched passes: the caller's input of the last forwardBatch() and layer owned row major batchSize x size buffers,
+    //grown on demand, so batches of a steady size do not allocate
+    protected float[] batchInput;
+    protected int batchSize;
+    protected float[] batchOutput;
+    protected float[] batchDObjectivedX;
+
+    //Gradient sum of the per-sample fallback of backwardBatch()
+    private float[] batchGradient;
 
     public Layer(){
-        parameters = new ArrayList<float[][]>();
-        gradient = new ArrayList<float[][]>();
+        this.parameters = new float[0];
+
+        this.tensorOffsets = new int[0];
+        this.tensorRows = new int[0];
+        this.tensorCols = new int[0];
     }
 
 
     public abstract void forwardPass();
 
     /**
-     * Goal: Given dObjectivedY, calculate derivative data into gradient arraylist and populate dObjectivedX array.
+     * Goal: Given dObjectivedY, calculate derivative data into gradient array and populate dObjectivedX array.
      */
     public abstract void backwardPass();
 
+    /**
+     * Same result as backwardPass() followed by applyGradient(scalar): dObjectivedX is computed from the parameters before the update.
+     * Layers override this to update each weight as its gradient is produced, instead of writing the gradient out and
+     * reading it back, which halves the memory traffic of an online step.
+     */
+    public void backwardAndApply(float scalar){
+        this.backwardPass();
+        this.applyGradient(scalar);
+    }
+
+    /**
+     * Forward pass for batchSize samples. input holds one sample per row (batchSize x input size, row major) and must not change
+     * until the matching backwardBatch(). Returns the layer's batchSize x output size output buffer.
+     *
+     * The default runs forwardPass() per sample; stateful layers such as LSTM apply their current state to every sample.
+     */
+    public float[] forwardBatch(float[] input, int batchSize){
+        int inputSize = this.inputVector.length;
+        int outputSize = this.outputVector.length;
 
-    
-    protected float dot(float[] a, float[] b){
-        float sum = 0;
+        this.batchInput = input;
+        this.batchSize = batchSize;
+        this.batchOutput = Layer.ensureCapacity(this.batchOutput, batchSize * outputSize);
 
-        for(int i = 0; i < a.length; i++){
-            sum += a[i] * b[i];
+        for(int b = 0; b < batchSize; b++){
+            System.arraycopy(input, b * inputSize, this.inputVector, 0, inputSize);
+            this.forwardPass();
+            System.arraycopy(this.outputVector, 0, this.batchOutput, b * outputSize, outputSize);
         }
 
-        return sum;
+        return this.batchOutput;
     }
 
-    protected void populateParams(float min, float max){
-        for(int i = 0; i < this.parameters.size(); i++){
-            float[][] paramMatrix = this.parameters.get(i);
+    /**
+     * Backward pass for the batch of the last forwardBatch(). dObjdY holds batchSize x output size values. The gradient is set to
+     * the sum of the per-sample gradients (apply it with applyGradient()) and the batchSize x input size dObjectivedX buffer is returned.
+     *
+     * The default repeats forwardPass() and backwardPass() per sample.
+     */
+    public float[] backwardBatch(float[] dObjdY, int batchSize){
+        int inputSize = this.inputVector.length;
+        int outputSize = this.outputVector.length;
+
+        float[] grad = this.getGradient();
+        this.batchGradient = Layer.ensureCapacity(this.batchGradient, grad.length);
+        Arrays.fill(this.batchGradient, 0f);
+
+        this.batchDObjectivedX = Layer.ensureCapacity(this.batchDObjectivedX, batchSize * inputSize);
 
-            Utility.populateRandom(paramMatrix, min, max);
+        for(int b = 0; b < batchSize; b++){
+            System.arraycopy(this.batchInput, b * inputSize, this.inputVector, 0, inputSize);
+            this.forwardPass();
+
+            System.arraycopy(dObjdY, b * outputSize, this.dObjectivedY, 0, outputSize);
+            this.backwardPass();
+
+            Layer.KERNELS.axpy(1f, grad, 0, this.batchGradient, 0, grad.length);
+            System.arraycopy(this.dObjectivedX, 0, this.batchDObjectivedX, b * inputSize, inputSize);
         }
+
+        System.arraycopy(this.batchGradient, 0, grad, 0, grad.length);
+
+        return this.batchDObjectivedX;
     }
-    
 
-    public void applyGradient(float scalar){
+    /**
+     * sums[u] = weight[u] . inputVector + bias[u] for units [start, end) of a dense layer (tensor 0 is the numUnits x inputSize
+     * weight, tensor 1 the bias). The dense kernels below take a range so that ParallelLoop can split them.
+     */
+    protected void denseAffine(int start, int end, float[] sums){
+        float[] params = this.parameters;
+        int inputSize = this.inputVector.length;
+        int biasOffset = this.tensorOffsets[1];
+
+        for(int u = start; u < end; u++){
+            sums[u] = Layer.KERNELS.dot(params, u * inputSize, this.inputVector, 0, inputSize) + params[biasOffset + u];
+        }
+    }
+
+    /**
+     * Weight gradient rows [start, end) of a dense layer: row u is delta[u] * inputVector.
+     */
+    protected void denseWeightGradient(int start, int end, float[] delta){
+        float[] grad = this.gradient;
+        int inputSize = this.inputVector.length;
+
+        for(int u = start; u < end; u++){
+            Layer.KERNELS.scale(delta[u], this.inputVector, 0, grad, u * inputSize, inputSize);
+        }
+    }
+
+    /**
+     * dObjectivedX[c] = sum over units of delta[u] * weight[u][c] for columns [start, end) of a dense layer. The weight rows are
+     * walked in order, so the column slice of every row is read sequentially.
+     */
+    protected void denseInputGradient(int start, int end, float[] delta){
+        float[] params = this.parameters;
+        int inputSize = this.inputVector.length;
+
+        Arrays.fill(this.dObjectivedX, start, end, 0f);
+        for(int u = 0; u < delta.length; u++){
+            Layer.KERNELS.axpy(delta[u], params, u * inputSize + start, this.dObjectivedX, start, end - start);
+        }
+    }
+
+    /**
+     * Fused denseInputGradient() and weight update for columns [start, end): each weight row slice is added into dObjectivedX before
+     * it is updated by scalar * delta[u] * inputVector, so dObjectivedX sees the old weights. The bias is left to the caller.
+     */
+    protected void denseInputGradientAndApply(int start, int end, float[] delta, float scalar){
+        float[] params = this.parameters;
+        int inputSize = this.inputVector.length;
+
+        Arrays.fill(this.dObjectivedX, start, end, 0f);
+        for(int u = 0; u < delta.length; u++){
+            int row = u * inputSize;
+
+            Layer.KERNELS.axpy(delta[u], params, row + start, this.dObjectivedX, start, end - start);
+            Layer.KERNELS.axpy(scalar * delta[u], this.inputVector, start, params, row + start, end - start);
+        }
+    }
+
+    /**
+     * Batched affine transform for layers whose tensor 0 is a numUnits x inputSize weight and tensor 1 a numUnits x 1 bias:
+     * sums[b * numUnits + u] = weight[u] . input[b] + bias[u]. Four weight rows at a time go through every sample, so each input
+     * value loaded serves four units and the rows stay in cache across the batch.
+     */
+    protected void denseForwardBatch(float[] input, int batchSize, float[] sums){
+        float[] params = this.parameters;
+        int numUnits = this.tensorRows[0];
+        int inputSize = this.tensorCols[0];
+        int biasOffset = this.tensorOffsets[1];
+
+        int u = 0;
+        for(; u + 4 <= numUnits; u += 4){
+            int row = u * inputSize;
+
+            for(int b = 0; b < batchSize; b++){
+                Layer.KERNELS.dot4(params, row, row + inputSize, row + 2 * inputSize, row + 3 * inputSize, input, b * inputSize, inputSize, sums, b * numUnits + u);
+            }
+        }
+
+        for(; u < numUnits; u++){
+            for(int b = 0; b < batchSize; b++){
+                sums[b * numUnits + u] = Layer.KERNELS.dot(params, u * inputSize, input, b * inputSize, inputSize);
+            }
+        }
+
+        for(int b = 0; b < batchSize; b++){
+            Layer.KERNELS.axpy(1f, params, biasOffset, sums, b * numUnits, numUnits);
+        }
+    }
+
+    /**
+     * Backward pass of denseForwardBatch(). delta[b * numUnits + u] is dObjective/dSum of each sample and unit. Sets the gradient
+     * to the sum over the batch and writes delta times the weights into dX (batchSize x inputSize).
+     */
+    protected void denseBackwardBatch(float[] delta, int batchSize, float[] dX){
+        float[] params = this.parameters;
+        float[] grad = this.getGradient();
+        float[] input = this.batchInput;
+        int numUnits = this.tensorRows[0];
+        int inputSize = this.tensorCols[0];
+        int biasOffset = this.tensorOffsets[1];
+
+        //Weight gradient: each gradient row takes the batch's input rows four at a time while it is in cache
+        for(int u = 0; u < numUnits; u++){
+            int row = u * inputSize;
+            Arrays.fill(grad, row, row + inputSize, 0f);
+
+            int b = 0;
+            for(; b + 4 <= batchSize; b += 4){
+                Layer.KERNELS.axpy4(delta[b * numUnits + u], delta[(b + 1) * numUnits + u], delta[(b + 2) * numUnits + u], delta[(b + 3) * numUnits + u],
+                        input, b * inputSize, (b + 1) * inputSize, (b + 2) * inputSize, (b + 3) * inputSize, grad, row, inputSize);
+            }
+
+            for(; b < batchSize; b++){
+                Layer.KERNELS.axpy(delta[b * numUnits + u], input, b * inputSize, grad, row, inputSize);
+            }
+
+            float biasSum = 0;
+            for(b = 0; b < batchSize; b++){
+                biasSum += delta[b * numUnits + u];
+            }
+            grad[biasOffset + u] = biasSum;
+        }
+
+        //dObjectivedX: blocks of weight rows stay in cache while every sample's delta goes through them, four rows at a time
+        Arrays.fill(dX, 0, batchSize * inputSize, 0f);
+
+        for(int start = 0; start < numUnits; start += Layer.BLOCK_ROWS){
+            int end = Math.min(start + Layer.BLOCK_ROWS, numUnits);
 
-        for(int i = 0; i < this.gradient.size(); i++){
-            float[][] gradientMatrix = this.gradient.get(i);
-            float[][] paramMatrix = this.parameters.get(i);
+            for(int b = 0; b < batchSize; b++){
+                int out = b * numUnits;
 
-            for(int r = 0; r < paramMatrix.length; r++){
-                for(int c = 0; c < paramMatrix[r].length; c++){
-                    paramMatrix[r][c] += scalar * gradientMatrix[r][c];
+                int u = start;
+                for(; u + 4 <= end; u += 4){
+                    int row = u * inputSize;
+
+                    Layer.KERNELS.axpy4(delta[out + u], delta[out + u + 1], delta[out + u + 2], delta[out + u + 3],
+                            params, row, row + inputSize, row + 2 * inputSize, row + 3 * inputSize, dX, b * inputSize, inputSize);
+                }
+
+                for(; u < end; u++){
+                    Layer.KERNELS.axpy(delta[out + u], params, u * inputSize, dX, b * inputSize, inputSize);
                 }
             }
         }
+    }
+
+    /**
+     * Returns buffer if it holds at least size values, otherwise a new array of that size.
+     */
+    protected static float[] ensureCapacity(float[] buffer, int size){
+        if(buffer != null && buffer.length >= size){
+            return buffer;
+        }
+
+        return new float[size];
+    }
+
+    /**
+     * Creates a layer of the same type and shape with a copy of this layer's parameters, e.g. for evaluation on another thread.
+     */
+    public abstract Layer duplicate();
+
+    /**
+     * Allocates the parameter storage. shape holds (rows, cols) pairs, one per tensor, in storage order.
+     */
+    protected void allocateParameters(int... shape){
+        int numTensors = shape.length / 2;
+
+        this.tensorOffsets = new int[numTensors];
+        this.tensorRows = new int[numTensors];
+        this.tensorCols = new int[numTensors];
+
+        int size = 0;
+        for(int i = 0; i < numTensors; i++){
+            this.tensorOffsets[i] = size;
+            this.tensorRows[i] = shape[2 * i];
+            this.tensorCols[i] = shape[2 * i + 1];
+
+            size += this.tensorRows[i] * this.tensorCols[i];
+        }
+
+        this.parameters = new float[size];
+        this.gradient = null;
+    }
+
+    /**
+     * Returns the gradient storage, allocating it on first use.
+     */
+    protected float[] getGradient(){
+        if(this.gradient == null){
+            this.gradient = new float[this.parameters.length];
+        }
+
+        return this.gradient;
+    }
+
+    public int getNumParameters(){
+        return this.parameters.length;
+    }
+
+    public int getNumTensors(){
+        return this.tensorOffsets.length;
+    }
+
+    public int getTensorOffset(int tensor){
+        return this.tensorOffsets[tensor];
+    }
+
+    public int getTensorRows(int tensor){
+        return this.tensorRows[tensor];
+    }
+
+    public int getTensorCols(int tensor){
+        return this.tensorCols[tensor];
+    }
+
+    /**
+     * Copies the parameters of a layer of the same type and shape into this layer.
+     */
+    protected void copyParametersFrom(Layer other){
+        System.arraycopy(other.parameters, 0, this.parameters, 0, this.parameters.length);
+    }
+
+
+
+    protected float dot(float[] a, float[] b){
+        return Layer.KERNELS.dot(a, 0, b, 0, a.length);
+    }
+
+    /**
+     * Dot product of b with the b.length values of a starting at aOffset, e.g. one row of a weight tensor.
+     */
+    protected float dot(float[] a, int aOffset, float[] b){
+        return Layer.KERNELS.dot(a, aOffset, b, 0, b.length);
+    }
+
+    protected void populateParams(float min, float max){
+        Utility.populateRandom(this.parameters, min, max);
+    }
+
+    /**
+     * Sets every value of a parameter tensor to value.
+     */
+    protected void fillTensor(int tensor, float value){
+        int start = this.tensorOffsets[tensor];
+
+        Arrays.fill(this.parameters, start, start + this.tensorRows[tensor] * this.tensorCols[tensor], value);
+    }
+
+
+    /**
+     * Drops the gradient storage, e.g. of a layer that will only be used for inference.
+     */
+    public void releaseGradient(){
+        this.gradient = null;
+    }
+
+    public void applyGradient(float scalar){
+        if(this.gradient == null){
+            return;
+        }
 
-        
+        Layer.KERNELS.axpy(scalar, this.gradient, 0, this.parameters, 0, this.parameters.length);
     }
-}
\ No newline at end of file
+}
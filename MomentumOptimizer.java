@@ -0,0 +1,37 @@
+import java.util.ArrayList;
+
+/**
+ * Heavy ball momentum: velocity = momentum * velocity + gradScale * gradient, parameters += learningRate * velocity.
+ * The velocity keeps descending along directions the gradient keeps pointing in, which speeds up the slow, consistent part of
+ * the TD updates while their noise averages out.
+ */
+public class MomentumOptimizer extends Optimizer{
+
+    private float momentum;
+
+    private float[][] velocity;
+
+    public MomentumOptimizer(float momentum){
+        super();
+
+        if(momentum < 0 || momentum >= 1){
+            throw new IllegalArgumentException("momentum must be in [0, 1)");
+        }
+
+        this.momentum = momentum;
+    }
+
+    @Override
+    protected void allocateState(ArrayList<Layer> network){
+        this.velocity = Optimizer.allocateMoments(network);
+    }
+
+    @Override
+    protected void update(int index, float[] params, float[] grad, float learningRate, float gradScale){
+        float[] v = this.velocity[index];
+
+        Layer.KERNELS.scale(this.momentum, v, 0, v, 0, v.length);
+        Layer.KERNELS.axpy(gradScale, grad, 0, v, 0, v.length);
+        Layer.KERNELS.axpy(learningRate, v, 0, params, 0, params.length);
+    }
+}
@@ -1,5 +1,3 @@
-import java.util.concurrent.ArrayBlockingQueue;
-
 public class MovingAverage{
 
     private int maxSize;
@@ -8,29 +6,35 @@ public class MovingAverage{
 
     private float sum;
 
-    private ArrayBlockingQueue<Float> queue;
+    //Ring buffer of the most recent samples. Primitive storage keeps addSample() allocation free.
+    private float[] samples;
+
+    private int oldestIndex;
 
     public MovingAverage(int samples){
 
         this.maxSize = samples;
         this.currentSize = 0;
         this.sum = 0;
-        this.queue = new ArrayBlockingQueue<Float>(samples);
+        this.samples = new float[samples];
+        this.oldestIndex = 0;
     }
 
     public void addSample(float sample){
 
         if(this.currentSize == this.maxSize){
             //remove oldest sample, subtract from sum
-            float oldestSample = this.queue.poll();
+            float oldestSample = this.samples[this.oldestIndex];
             this.sum -= oldestSample;
 
-            //Add new sample
-            this.queue.offer(sample);
+            //Add new sample in its slot
+            this.samples[this.oldestIndex] = sample;
             this.sum += sample;
+
+            this.oldestIndex = (this.oldestIndex + 1) % this.maxSize;
         } else {
             //Add new sample, increment size
-            this.queue.offer(sample);
+            this.samples[(this.oldestIndex + this.currentSize) % this.maxSize] = sample;
             this.sum += sample;
             currentSize++;
         }
@@ -39,7 +43,7 @@ public class MovingAverage{
     public void reset(){
         this.currentSize = 0;
         this.sum = 0;
-        this.queue = new ArrayBlockingQueue<Float>(this.maxSize);
+        this.oldestIndex = 0;
     }
 
     public float getMean(){
@@ -55,4 +59,4 @@ public class MovingAverage{
     }
 
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,130 @@
+import java.util.ArrayList;
+
+/**
+ * Turns the gradient stored in each layer of a network into a parameter update. The agent ascends its objectives, so step() moves
+ * the parameters along +gradient: with plain SGD, parameters += learningRate * gradScale * gradient.
+ *
+ * An optimizer serves a single network. attach() allocates any per parameter state (moments) once, in the same layout as each layer's
+ * parameters, so step() does not allocate. Gradient norm clipping is optional and applies to the whole network.
+ */
+public abstract class Optimizer{
+
+    private ArrayList<Layer> network;
+
+    //Largest allowed L2 norm of gradScale * gradient over the whole network, 0 for no clipping
+    private float maxGradientNorm;
+
+    //Number of step() calls since attach(), e.g. for Adam's bias correction
+    protected long steps;
+
+    public Optimizer(){
+        this.maxGradientNorm = 0;
+    }
+
+    /**
+     * Binds the optimizer to network and allocates its state, one array per layer and moment. Calling it again resets the state.
+     */
+    public void attach(ArrayList<Layer> network){
+        this.network = network;
+        this.steps = 0;
+
+        this.allocateState(network);
+    }
+
+    /**
+     * Allocates the per layer state for network. Stateless optimizers keep the default, which does nothing.
+     */
+    protected void allocateState(ArrayList<Layer> network){
+    }
+
+    /**
+     * Rescales the gradient so that its L2 norm over all layers is at most maxNorm. 0 disables clipping (the default).
+     */
+    public void setGradientClipping(float maxNorm){
+        if(maxNorm < 0){
+            throw new IllegalArgumentException("maxNorm must not be negative");
+        }
+
+        this.maxGradientNorm = maxNorm;
+    }
+
+    public float getGradientClipping(){
+        return this.maxGradientNorm;
+    }
+
+    /**
+     * True when step() is exactly parameters += learningRate * gradScale * gradient, which lets the caller fuse the update into the
+     * backward pass (Layer.backwardAndApply()) instead of storing the gradient first.
+     */
+    public boolean isFusable(){
+        return false;
+    }
+
+    /**
+     * Updates the attached network from the gradient of gradScale * objective stored in its layers, e.g. by backwardPass().
+     */
+    public void step(float learningRate, float gradScale){
+        if(this.network == null){
+            throw new IllegalStateException("The optimizer is not attached to a network.");
+        }
+
+        float scale = gradScale;
+
+        if(this.maxGradientNorm > 0){
+            double squaredNorm = 0;
+            for(Layer layer : this.network){
+                float[] grad = layer.getGradient();
+                squaredNorm += Layer.KERNELS.dot(grad, 0, grad, 0, grad.length);
+            }
+
+            double norm = Math.abs(gradScale) * Math.sqrt(squaredNorm);
+            if(norm > this.maxGradientNorm){
+                scale *= (float)(this.maxGradientNorm / norm);
+            }
+        }
+
+        this.steps++;
+
+        for(int i = 0; i < this.network.size(); i++){
+            Layer layer = this.network.get(i);
+
+            this.update(i, layer.parameters, layer.getGradient(), learningRate, scale);
+        }
+    }
+
+    /**
+     * Updates the parameters of layer index from grad, where the gradient to ascend is gradScale * grad.
+     */
+    protected abstract void update(int index, float[] params, float[] grad, float learningRate, float gradScale);
+
+    /**
+     * One state array per layer of network, each as long as the layer's parameters.
+     */
+    protected static float[][] allocateMoments(ArrayList<Layer> network){
+        float[][] moments = new float[network.size()][];
+
+        for(int i = 0; i < network.size(); i++){
+            moments[i] = new float[network.get(i).getNumParameters()];
+        }
+
+        return moments;
+    }
+
+    /**
+     * Creates an optimizer with default hyperparameters from its name: sgd, momentum, rmsprop or adam.
+     */
+    public static Optimizer forName(String name){
+        switch(name.toLowerCase()){
+            case "sgd":
+                return new SGDOptimizer();
+            case "momentum":
+                return new MomentumOptimizer(0.9f);
+            case "rmsprop":
+                return new RMSPropOptimizer(0.99f, 1e-8f);
+            case "adam":
+                return new AdamOptimizer(0.9f, 0.999f, 1e-8f);
+            default:
+                throw new IllegalArgumentException("Unknown optimizer: " + name);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+
+/**
+ * Convergence of the optimizers on one fixed trace, run with java -XX:+UseSerialGC OptimizerBenchmark [traceSteps] [maxSteps].
+ *
+ * A small agent first records a trace (2000 decisions by default) against a synthetic allocation workload, and its update network
+ * encodes the trace into states once. Every optimizer then trains the same freshly initialized policy and value networks on those
+ * transitions, epoch after epoch, and reports how many TD updates it took until the mean policy confidence over the last WINDOW
+ * updates passed confidenceStopThreshold (the agent's own stopping criterion), along with the time per update.
+ */
+public class OptimizerBenchmark{
+
+    private static final int STATE_SIZE = 32;
+    private static final int HIDDEN_SIZE = 64;
+
+    //Updates the confidence is averaged over
+    private static final int WINDOW = 1000;
+
+    //Objects per workload step, and how many of them stay reachable
+    private static final int ALLOCATIONS = 2000;
+    private static final int RETAINED = 200000;
+
+    public static void main(String[] args){
+        int traceSteps = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int maxSteps = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+        GCAgent recorder = OptimizerBenchmark.createAgent(0.01f, 0.001f);
+        Trace trace = OptimizerBenchmark.record(recorder, traceSteps);
+        float[] states = recorder.encodeTrace(trace);
+
+        //Every optimizer starts from these parameters
+        GCAgent initial = OptimizerBenchmark.createAgent(0.01f, 0.001f);
+        float[] policyParams = GCAgent.copyParams(initial.getPolicyNetwork());
+        float[] valueParams = GCAgent.copyParams(initial.getValueNetwork());
+
+        System.out.println("Kernels: " + Kernels.get().getName() + ", trace of " + trace.size() + " steps, confidence threshold "
+            + initial.getConfidenceStopThreshold() + " over " + OptimizerBenchmark.WINDOW + " updates");
+
+        OptimizerBenchmark.run("SGD", 0.01f, 0.001f, new SGDOptimizer(), new SGDOptimizer(), 0, trace, states, policyParams, valueParams, maxSteps);
+        OptimizerBenchmark.run("Momentum 0.9", 0.01f, 0.001f, new MomentumOptimizer(0.9f), new MomentumOptimizer(0.9f), 0, trace, states, policyParams, valueParams, maxSteps);
+        OptimizerBenchmark.run("RMSProp", 0.001f, 0.0001f, new RMSPropOptimizer(0.99f, 1e-8f), new RMSPropOptimizer(0.99f, 1e-8f), 0, trace, states, policyParams, valueParams, maxSteps);
+        OptimizerBenchmark.run("Adam", 0.001f, 0.0001f, new AdamOptimizer(0.9f, 0.999f, 1e-8f), new AdamOptimizer(0.9f, 0.999f, 1e-8f), 0, trace, states, policyParams, valueParams, maxSteps);
+        OptimizerBenchmark.run("Adam, clip 1", 0.001f, 0.0001f, new AdamOptimizer(0.9f, 0.999f, 1e-8f), new AdamOptimizer(0.9f, 0.999f, 1e-8f), 1f, trace, states, policyParams, valueParams, maxSteps);
+
+        recorder.shutdown();
+        initial.shutdown();
+    }
+
+    private static GCAgent createAgent(float valueLR, float policyLR){
+        //Same defaults as new GCAgent(), with smaller networks so every optimizer gets enough updates, and no update network swap
+        return new GCAgent(OptimizerBenchmark.STATE_SIZE, OptimizerBenchmark.HIDDEN_SIZE, OptimizerBenchmark.HIDDEN_SIZE, OptimizerBenchmark.HIDDEN_SIZE,
+            valueLR, policyLR, 0.001f, 0.95f, 0.9999f, 100000);
+    }
+
+    /**
+     * Records steps decisions of agent, with a burst of allocations before each one.
+     */
+    private static Trace record(GCAgent agent, int steps){
+        Object[] retained = new Object[OptimizerBenchmark.RETAINED];
+        int next = 0;
+
+        agent.startTraceRecording(steps);
+
+        for(int i = 0; i < steps; i++){
+            for(int j = 0; j < OptimizerBenchmark.ALLOCATIONS; j++){
+                retained[next] = new byte[16 + (j & 255)];
+                next = (next + 1) % retained.length;
+            }
+
+            agent.reportWork();
+            agent.invoke();
+        }
+
+        return agent.stopTraceRecording();
+    }
+
+    private static void run(String name, float valueLR, float policyLR, Optimizer valueOptimizer, Optimizer policyOptimizer, float maxGradientNorm,
+            Trace trace, float[] states, float[] policyParams, float[] valueParams, int maxSteps){
+        GCAgent agent = OptimizerBenchmark.createAgent(valueLR, policyLR);
+        GCAgent.setParameters(agent.getPolicyNetwork(), policyParams);
+        GCAgent.setParameters(agent.getValueNetwork(), valueParams);
+
+        valueOptimizer.setGradientClipping(maxGradientNorm);
+        policyOptimizer.setGradientClipping(maxGradientNorm);
+        agent.setOptimizers(valueOptimizer, policyOptimizer);
+
+        int stateSize = OptimizerBenchmark.STATE_SIZE;
+        float[] state = new float[stateSize];
+        float[] nextState = new float[stateSize];
+        MovingAverage confidence = new MovingAverage(OptimizerBenchmark.WINDOW);
+        float threshold = agent.getConfidenceStopThreshold();
+
+        int steps = 0;
+        boolean reached = false;
+        long start = System.nanoTime();
+
+        while(steps < maxSteps && !reached){
+            for(int t = 0; t + 1 < trace.size() && steps < maxSteps; t++){
+                //No transition across an episode boundary
+                if(trace.isEpisodeStart(t + 1)){
+                    continue;
+                }
+
+                System.arraycopy(states, t * stateSize, state, 0, stateSize);
+                System.arraycopy(states, (t + 1) * stateSize, nextState, 0, stateSize);
+
+                agent.learnFromTransition(state, trace.getAction(t), trace.getActionProb(t), trace.getReward(t), nextState);
+                confidence.addSample(agent.policyConfidence(state));
+                steps++;
+
+                if(confidence.getNumSamples() >= OptimizerBenchmark.WINDOW && confidence.getMean() > threshold){
+                    reached = true;
+                    break;
+                }
+            }
+        }
+
+        float microsPerStep = (System.nanoTime() - start) / (float)steps / 1000f;
+
+        if(reached){
+            System.out.println(name + ": " + steps + " updates to confidence " + threshold + " (" + microsPerStep + " us/update)");
+        } else {
+            System.out.println(name + ": not reached in " + steps + " updates, confidence " + confidence.getMean() + " (" + microsPerStep + " us/update)");
+        }
+
+        agent.shutdown();
+    }
+}
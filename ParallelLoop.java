@@ -0,0 +1,167 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A loop over [0, count) that a layer kernel runs either on the calling thread or split into contiguous ranges on a dedicated
+ * fork-join pool shared by all layers. Loops with less than getThreshold() multiply-adds always stay on the calling thread, so
+ * the default network sizes are unaffected; wide layers (512+ units) are split.
+ *
+ * The pool has getParallelism() threads, by default a quarter of the processors (-Drl_gc.parallelism=n), so that the agent never
+ * competes with the application for every core. Parallelism 1 disables splitting. Tasks are allocated once per loop and reused.
+ * The CPU time the workers spend on a split loop is added to the calling thread's getWorkerCpuNanos(), so AgentOverhead can charge
+ * it to the agent that ran the loop.
+ */
+public class ParallelLoop{
+
+    public interface Body{
+        void run(int start, int end);
+    }
+
+    private static final long DEFAULT_THRESHOLD = 1 << 17;
+
+    private static ForkJoinPool pool;
+    private static volatile long threshold = ParallelLoop.DEFAULT_THRESHOLD;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean THREAD_CPU_TIME = ParallelLoop.THREADS.isCurrentThreadCpuTimeSupported();
+
+    //Worker CPU nanoseconds of the split loops each thread ran
+    private static final ThreadLocal<long[]> WORKER_CPU_NANOS = ThreadLocal.withInitial(() -> new long[1]);
+
+    static {
+        int processors = Runtime.getRuntime().availableProcessors();
+
+        ParallelLoop.setParallelism(Integer.getInteger("rl_gc.parallelism", Math.max(1, processors / 4)));
+    }
+
+    private final Body body;
+
+    private Range[] ranges;
+    private Root root;
+
+    public ParallelLoop(Body body){
+        this.body = body;
+    }
+
+    /**
+     * Sets the number of kernel threads. Loops already running finish on the old pool.
+     */
+    public static synchronized void setParallelism(int parallelism){
+        if(parallelism <= 0){
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+
+        ForkJoinPool old = ParallelLoop.pool;
+
+        ParallelLoop.pool = parallelism == 1 ? null : new ForkJoinPool(parallelism, p -> {
+            ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            t.setName("gc-agent-kernel-" + t.getPoolIndex());
+            t.setDaemon(true);
+            return t;
+        }, null, false);
+
+        if(old != null){
+            old.shutdown();
+        }
+    }
+
+    public static synchronized int getParallelism(){
+        return ParallelLoop.pool == null ? 1 : ParallelLoop.pool.getParallelism();
+    }
+
+    /**
+     * Sets the number of multiply-adds a loop needs before it is split.
+     */
+    public static void setThreshold(long multiplyAdds){
+        ParallelLoop.threshold = multiplyAdds;
+    }
+
+    public static long getThreshold(){
+        return ParallelLoop.threshold;
+    }
+
+    /**
+     * Runs body over [0, count), where each index costs about workPerIndex multiply-adds.
+     */
+    public void run(int count, long workPerIndex){
+        ForkJoinPool p = ParallelLoop.pool;
+
+        if(p == null || count < 2 || count * workPerIndex < ParallelLoop.threshold){
+            this.body.run(0, count);
+            return;
+        }
+
+        int parts = Math.min(p.getParallelism(), count);
+
+        if(this.ranges == null || this.ranges.length != parts){
+            this.ranges = new Range[parts];
+            for(int i = 0; i < parts; i++){
+                this.ranges[i] = new Range();
+            }
+            this.root = new Root();
+        }
+
+        for(int i = 0; i < parts; i++){
+            this.ranges[i].start = (int)((long)count * i / parts);
+            this.ranges[i].end = (int)((long)count * (i + 1) / parts);
+        }
+
+        this.root.reinitialize();
+        p.invoke(this.root);
+
+        long cpuNanos = 0;
+        for(int i = 0; i < parts; i++){
+            cpuNanos += this.ranges[i].cpuNanos;
+        }
+        ParallelLoop.WORKER_CPU_NANOS.get()[0] += cpuNanos;
+    }
+
+    /**
+     * Total CPU time the pool's workers spent on the loops the calling thread split, 0 if it never split one. Without thread CPU
+     * time support in the JVM this is the workers' wall time instead.
+     */
+    public static long getWorkerCpuNanos(){
+        return ParallelLoop.WORKER_CPU_NANOS.get()[0];
+    }
+
+    private static long threadCpuNanos(){
+        return ParallelLoop.THREAD_CPU_TIME ? ParallelLoop.THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    private class Root extends RecursiveAction{
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void compute(){
+            for(Range r : ParallelLoop.this.ranges){
+                r.reinitialize();
+            }
+
+            invokeAll(ParallelLoop.this.ranges);
+        }
+    }
+
+    private class Range extends RecursiveAction{
+
+        private static final long serialVersionUID = 1L;
+
+        private int start;
+        private int end;
+
+        //CPU time of the last run, on whichever worker ran it
+        private long cpuNanos;
+
+        @Override
+        protected void compute(){
+            long startNanos = ParallelLoop.threadCpuNanos();
+
+            ParallelLoop.this.body.run(this.start, this.end);
+
+            this.cpuNanos = ParallelLoop.threadCpuNanos() - startNanos;
+        }
+    }
+}
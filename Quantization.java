@@ -0,0 +1,16 @@
+/**
+ * Weight storage of a QuantizedDense layer.
+ */
+public enum Quantization{
+
+    /**
+     * One signed byte per weight with a float scale per row; inputs are quantized to bytes with calibrated per-column scales and the
+     * mat-vec accumulates in int. About a quarter of the float size.
+     */
+    INT8,
+
+    /**
+     * IEEE half precision weights stored in a short[], decoded through a lookup table and accumulated in float. Half the float size.
+     */
+    FP16
+}
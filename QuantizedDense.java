@@ -0,0 +1,188 @@
+/**
+ * Inference only copy of a Dense layer with quantized weights (see Quantization). The bias and the activation stay in float.
+ *
+ * INT8 folds a calibrated per-column input range into the weights before quantizing each row to [-127, 127], so every input is
+ * quantized against its own range rather than the largest one: x_q[c] = round(127 * x[c] / inputRange[c]) and
+ * y[u] = activation(rowScale[u] * sum_c w_q[u][c] * x_q[c] + bias[u]), with the sum in int.
+ * FP16 keeps the weights as half floats and needs no calibration. Both mat-vecs go through Kernels (dotInt8(), dotHalf()).
+ *
+ * backwardPass() is not supported; the layer is meant for frozen agents.
+ */
+public class QuantizedDense extends Layer{
+
+    private Quantization quantization;
+
+    private Activation activation;
+
+    private int numUnits;
+    private int inputSize;
+
+    private byte[] int8Weights;
+    private short[] fp16Weights;
+
+    //INT8: weight scale per row (including the 1/127 of the input) and 1/range per input column
+    private float[] rowScales;
+    private float[] inverseInputRanges;
+
+    private float[] bias;
+
+    //INT8: inputVector quantized to [-127, 127]
+    private int[] quantizedInput;
+
+    //Unused derivative output of Activation.apply()
+    private float[] derivativeVector;
+
+    /**
+     * Quantizes layer. inputRanges holds the largest magnitude seen per input column during calibration (INT8 only; may be null for FP16).
+     */
+    public QuantizedDense(Dense layer, Quantization quantization, float[] inputRanges){
+        super();
+
+        this.quantization = quantization;
+        this.activation = layer.getActivation();
+
+        this.numUnits = layer.getTensorRows(0);
+        this.inputSize = layer.getTensorCols(0);
+
+        this.inputVector = new float[this.inputSize];
+        this.outputVector = new float[this.numUnits];
+        this.derivativeVector = new float[this.numUnits];
+
+        float[] params = layer.parameters;
+        int biasOffset = layer.getTensorOffset(1);
+
+        this.bias = new float[this.numUnits];
+        System.arraycopy(params, biasOffset, this.bias, 0, this.numUnits);
+
+        if(quantization == Quantization.INT8){
+            if(inputRanges == null || inputRanges.length != this.inputSize){
+                throw new IllegalArgumentException("INT8 quantization needs one calibrated range per input");
+            }
+
+            this.quantizeInt8(params, inputRanges);
+        } else {
+            this.fp16Weights = new short[this.numUnits * this.inputSize];
+            for(int i = 0; i < this.fp16Weights.length; i++){
+                this.fp16Weights[i] = Kernels.floatToHalf(params[i]);
+            }
+        }
+    }
+
+    private QuantizedDense(QuantizedDense other){
+        super();
+
+        //The quantized weights never change, so copies share them and only get their own activations
+        this.quantization = other.quantization;
+        this.activation = other.activation;
+        this.numUnits = other.numUnits;
+        this.inputSize = other.inputSize;
+        this.int8Weights = other.int8Weights;
+        this.fp16Weights = other.fp16Weights;
+        this.rowScales = other.rowScales;
+        this.inverseInputRanges = other.inverseInputRanges;
+        this.bias = other.bias;
+
+        this.inputVector = new float[this.inputSize];
+        this.outputVector = new float[this.numUnits];
+        this.derivativeVector = new float[this.numUnits];
+        this.quantizedInput = other.quantizedInput != null ? new int[this.inputSize] : null;
+    }
+
+    private void quantizeInt8(float[] weights, float[] inputRanges){
+        int n = this.inputSize;
+
+        this.int8Weights = new byte[this.numUnits * n];
+        this.rowScales = new float[this.numUnits];
+        this.inverseInputRanges = new float[n];
+        this.quantizedInput = new int[n];
+
+        //An input that never moved during calibration still gets a usable range
+        float[] ranges = new float[n];
+        for(int c = 0; c < n; c++){
+            ranges[c] = inputRanges[c] > 1e-12f ? inputRanges[c] : 1f;
+            this.inverseInputRanges[c] = 1f / ranges[c];
+        }
+
+        for(int u = 0; u < this.numUnits; u++){
+            int row = u * n;
+
+            float max = 0;
+            for(int c = 0; c < n; c++){
+                max = Math.max(max, Math.abs(weights[row + c] * ranges[c]));
+            }
+
+            float scale = max > 0 ? max / 127f : 1f;
+            for(int c = 0; c < n; c++){
+                this.int8Weights[row + c] = (byte)Math.round(weights[row + c] * ranges[c] / scale);
+            }
+
+            this.rowScales[u] = scale / 127f;
+        }
+    }
+
+    @Override
+    public void forwardPass(){
+        if(this.quantization == Quantization.INT8){
+            this.forwardInt8();
+        } else {
+            this.forwardFp16();
+        }
+
+        this.activation.apply(this.outputVector, this.outputVector, this.derivativeVector, 0, this.numUnits);
+    }
+
+    private void forwardInt8(){
+        int[] x = this.quantizedInput;
+        byte[] w = this.int8Weights;
+        int n = this.inputSize;
+
+        for(int c = 0; c < n; c++){
+            float q = 127f * this.inputVector[c] * this.inverseInputRanges[c];
+            x[c] = Math.round(Math.max(-127f, Math.min(127f, q)));
+        }
+
+        for(int u = 0; u < this.numUnits; u++){
+            int sum = Layer.KERNELS.dotInt8(w, u * n, x, 0, n);
+
+            this.outputVector[u] = this.rowScales[u] * sum + this.bias[u];
+        }
+    }
+
+    private void forwardFp16(){
+        short[] w = this.fp16Weights;
+        int n = this.inputSize;
+
+        for(int u = 0; u < this.numUnits; u++){
+            this.outputVector[u] = Layer.KERNELS.dotHalf(w, u * n, this.inputVector, 0, n) + this.bias[u];
+        }
+    }
+
+    @Override
+    public void backwardPass(){
+        throw new IllegalStateException("Quantized layers are inference only.");
+    }
+
+    @Override
+    public Layer duplicate(){
+        return new QuantizedDense(this);
+    }
+
+    public Quantization getQuantization(){
+        return this.quantization;
+    }
+
+    /**
+     * Bytes held by the weights, scales and bias.
+     */
+    public long getModelBytes(){
+        long bytes = 4L * this.bias.length;
+
+        if(this.quantization == Quantization.INT8){
+            bytes += this.int8Weights.length + 4L * this.rowScales.length + 4L * this.inverseInputRanges.length;
+        } else {
+            bytes += 2L * this.fp16Weights.length;
+        }
+
+        return bytes;
+    }
+}
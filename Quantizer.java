@@ -0,0 +1,281 @@
+import java.util.ArrayList;
+
+/**
+ * Converts the dense layers of a frozen agent's policy and update networks to QuantizedDense (see GCAgent.quantize()).
+ *
+ * Calibration replays a recorded Trace through the float networks, recording the largest input magnitude each dense layer sees per
+ * column. The quantized networks then replay the same trace, carrying their own recurrent state, and the report compares their action
+ * probabilities with the float ones step by step.
+ */
+public class Quantizer{
+
+    /**
+     * Accuracy and size of a quantization, measured on the calibration trace.
+     */
+    public static class Report{
+
+        private Quantization quantization;
+        private int steps;
+        private float argmaxAgreement;
+        private float meanAbsError;
+        private float maxAbsError;
+        private long floatBytes;
+        private long quantizedBytes;
+
+        public Quantization getQuantization(){
+            return this.quantization;
+        }
+
+        public int getSteps(){
+            return this.steps;
+        }
+
+        /**
+         * Fraction of steps where the quantized policy's most likely action is the float policy's.
+         */
+        public float getArgmaxAgreement(){
+            return this.argmaxAgreement;
+        }
+
+        /**
+         * Mean and max over steps and actions of |quantized probability - float probability|.
+         */
+        public float getMeanAbsError(){
+            return this.meanAbsError;
+        }
+
+        public float getMaxAbsError(){
+            return this.maxAbsError;
+        }
+
+        /**
+         * Bytes of the converted layers' weights and biases before and after quantization.
+         */
+        public long getFloatBytes(){
+            return this.floatBytes;
+        }
+
+        public long getQuantizedBytes(){
+            return this.quantizedBytes;
+        }
+
+        @Override
+        public String toString(){
+            return this.quantization + " over " + this.steps + " steps: argmax agreement " + this.argmaxAgreement
+                + ", mean |dp| " + this.meanAbsError + ", max |dp| " + this.maxAbsError
+                + ", model " + this.floatBytes + " -> " + this.quantizedBytes + " bytes";
+        }
+    }
+
+    private ArrayList<Layer> policyNetwork;
+    private ArrayList<Layer> updateNetwork;
+    private Report report;
+
+    private Quantizer(){
+    }
+
+    /**
+     * Calibrates and quantizes the agent's networks on trace. The agent is not modified; see getPolicyNetwork() and getUpdateNetwork().
+     * A recurrent encoder is not a dense network and stays in float (getUpdateNetwork() returns null then).
+     */
+    static Quantizer quantize(GCAgent agent, Trace trace, Quantization quantization){
+        if(trace.size() == 0){
+            throw new IllegalArgumentException("The calibration trace is empty");
+        }
+
+        int numActions = agent.getNumActions();
+        boolean recurrent = agent.hasRecurrentEncoder();
+
+        ArrayList<Layer> floatPolicy = agent.getPolicyNetwork();
+        ArrayList<Layer> floatUpdate = agent.getUpdateNetwork();
+
+        float[][] policyRanges = Quantizer.createRanges(floatPolicy);
+        float[][] updateRanges = recurrent ? null : Quantizer.createRanges(floatUpdate);
+
+        float[] floatProbs = new float[trace.size() * numActions];
+        Quantizer.replay(agent, trace, floatUpdate, floatPolicy, updateRanges, policyRanges, floatProbs);
+
+        Quantizer result = new Quantizer();
+        result.report = new Report();
+        result.report.quantization = quantization;
+        result.report.steps = trace.size();
+
+        result.policyNetwork = Quantizer.convert(floatPolicy, quantization, policyRanges, result.report);
+        if(!recurrent){
+            result.updateNetwork = Quantizer.convert(floatUpdate, quantization, updateRanges, result.report);
+        }
+
+        float[] quantizedProbs = new float[trace.size() * numActions];
+        Quantizer.replay(agent, trace, recurrent ? floatUpdate : result.updateNetwork, result.policyNetwork, null, null, quantizedProbs);
+
+        int agree = 0;
+        double errorSum = 0;
+        float maxError = 0;
+        for(int t = 0; t < trace.size(); t++){
+            int row = t * numActions;
+
+            if(Quantizer.argmax(floatProbs, row, numActions) == Quantizer.argmax(quantizedProbs, row, numActions)){
+                agree++;
+            }
+
+            for(int a = 0; a < numActions; a++){
+                float error = Math.abs(quantizedProbs[row + a] - floatProbs[row + a]);
+                errorSum += error;
+                maxError = Math.max(maxError, error);
+            }
+        }
+
+        result.report.argmaxAgreement = agree / (float)trace.size();
+        result.report.meanAbsError = (float)(errorSum / floatProbs.length);
+        result.report.maxAbsError = maxError;
+
+        return result;
+    }
+
+    ArrayList<Layer> getPolicyNetwork(){
+        return this.policyNetwork;
+    }
+
+    ArrayList<Layer> getUpdateNetwork(){
+        return this.updateNetwork;
+    }
+
+    Report getReport(){
+        return this.report;
+    }
+
+    private static float[][] createRanges(ArrayList<Layer> network){
+        float[][] ranges = new float[network.size()][];
+
+        for(int i = 0; i < network.size(); i++){
+            ranges[i] = new float[network.get(i).inputVector.length];
+        }
+
+        return ranges;
+    }
+
+    private static ArrayList<Layer> convert(ArrayList<Layer> network, Quantization quantization, float[][] ranges, Report report){
+        ArrayList<Layer> converted = new ArrayList<Layer>();
+
+        for(int i = 0; i < network.size(); i++){
+            Layer layer = network.get(i);
+
+            if(layer instanceof Dense){
+                QuantizedDense quantized = new QuantizedDense((Dense)layer, quantization, ranges[i]);
+
+                report.floatBytes += 4L * layer.getNumParameters();
+                report.quantizedBytes += quantized.getModelBytes();
+                converted.add(quantized);
+            } else {
+                converted.add(layer.duplicate());
+            }
+        }
+
+        return converted;
+    }
+
+    /**
+     * Runs the trace through update and policy like the agent does, writing the action probabilities of every step into probs.
+     * Networks are duplicated first, so the agent's own layers keep their activations. When ranges are given, every layer's input
+     * column magnitudes are folded into them.
+     */
+    private static void replay(GCAgent agent, Trace trace, ArrayList<Layer> update, ArrayList<Layer> policy, float[][] updateRanges, float[][] policyRanges, float[] probs){
+        int stateSize = agent.getStateSize();
+        int numActions = agent.getNumActions();
+        int observationSize = trace.getObservationSize();
+
+        policy = Quantizer.duplicate(policy);
+
+        //A recurrent encoder is rebuilt from the agent's LSTM parameters, so replaying does not disturb the agent's own state
+        RecurrentEncoder encoder = null;
+        if(agent.hasRecurrentEncoder()){
+            encoder = new RecurrentEncoder(stateSize, numActions, observationSize, 1);
+            GCAgent.setParameters(encoder.getNetwork(), GCAgent.copyParams(update));
+        } else {
+            update = Quantizer.duplicate(update);
+        }
+
+        float[] observation = new float[observationSize];
+        float[] state = new float[stateSize];
+        float[] input = new float[stateSize + numActions + observationSize];
+        float[] logits = new float[numActions];
+        float[] stepProbs = new float[numActions];
+
+        int prevAction = 0;
+        for(int t = 0; t < trace.size(); t++){
+            trace.getObservation(t, observation);
+            boolean episodeStart = trace.isEpisodeStart(t);
+
+            if(encoder != null){
+                if(episodeStart){
+                    encoder.reset();
+                }
+                System.arraycopy(encoder.encode(episodeStart ? -1 : prevAction, observation), 0, state, 0, stateSize);
+            } else {
+                //Same input as the agent: -1 state and action on the first step of an episode
+                if(episodeStart){
+                    for(int i = 0; i < stateSize + numActions; i++){
+                        input[i] = -1;
+                    }
+                } else {
+                    System.arraycopy(state, 0, input, 0, stateSize);
+                    for(int i = 0; i < numActions; i++){
+                        input[stateSize + i] = 0;
+                    }
+                    input[stateSize + prevAction] = 1;
+                }
+                System.arraycopy(observation, 0, input, stateSize + numActions, observationSize);
+
+                System.arraycopy(Quantizer.predict(update, input, updateRanges), 0, state, 0, stateSize);
+            }
+
+            System.arraycopy(Quantizer.predict(policy, state, policyRanges), 0, logits, 0, numActions);
+            agent.softmax(logits, stepProbs);
+            System.arraycopy(stepProbs, 0, probs, t * numActions, numActions);
+
+            prevAction = trace.getAction(t);
+        }
+    }
+
+    private static float[] predict(ArrayList<Layer> network, float[] input, float[][] ranges){
+        float[] x = input;
+
+        for(int i = 0; i < network.size(); i++){
+            Layer layer = network.get(i);
+            GCAgent.copyArrayContents(x, layer.inputVector);
+
+            if(ranges != null){
+                for(int c = 0; c < x.length; c++){
+                    ranges[i][c] = Math.max(ranges[i][c], Math.abs(x[c]));
+                }
+            }
+
+            layer.forwardPass();
+            x = layer.outputVector;
+        }
+
+        return x;
+    }
+
+    private static ArrayList<Layer> duplicate(ArrayList<Layer> network){
+        ArrayList<Layer> copy = new ArrayList<Layer>();
+
+        for(Layer l : network){
+            copy.add(l.duplicate());
+        }
+
+        return copy;
+    }
+
+    private static int argmax(float[] x, int offset, int length){
+        int best = 0;
+
+        for(int i = 1; i < length; i++){
+            if(x[offset + i] > x[offset + best]){
+                best = i;
+            }
+        }
+
+        return best;
+    }
+}
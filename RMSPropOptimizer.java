@@ -0,0 +1,43 @@
+import java.util.ArrayList;
+
+/**
+ * RMSProp: each parameter's step is divided by a running root mean square of its gradient,
+ * meanSquare = decay * meanSquare + (1 - decay) * g^2, parameters += learningRate * g / (sqrt(meanSquare) + epsilon),
+ * so parameters with small gradients (e.g. the zero initialized policy output layer) move as fast as the rest.
+ */
+public class RMSPropOptimizer extends Optimizer{
+
+    private float decay;
+    private float epsilon;
+
+    private float[][] meanSquare;
+
+    public RMSPropOptimizer(float decay, float epsilon){
+        super();
+
+        if(decay < 0 || decay >= 1 || epsilon <= 0){
+            throw new IllegalArgumentException("decay must be in [0, 1) and epsilon positive");
+        }
+
+        this.decay = decay;
+        this.epsilon = epsilon;
+    }
+
+    @Override
+    protected void allocateState(ArrayList<Layer> network){
+        this.meanSquare = Optimizer.allocateMoments(network);
+    }
+
+    @Override
+    protected void update(int index, float[] params, float[] grad, float learningRate, float gradScale){
+        float[] s = this.meanSquare[index];
+        float decay = this.decay;
+
+        for(int i = 0; i < params.length; i++){
+            float g = gradScale * grad[i];
+
+            s[i] = decay * s[i] + (1 - decay) * g * g;
+            params[i] += learningRate * g / ((float)Math.sqrt(s[i]) + this.epsilon);
+        }
+    }
+}
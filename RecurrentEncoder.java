@@ -0,0 +1,157 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * LSTM state encoder, the learnable alternative to GCAgent's dense update network. Each step feeds the one-hot previous action and
+ * the observation to an LSTM whose hidden state is the agent state, so the memory of the allocation history lives in the LSTM's
+ * hidden and cell state instead of being fed back through the input.
+ *
+ * The encoder is trained by truncated backpropagation through time: a ring keeps the inputs and incoming (h, c) of the recent steps,
+ * and backpropagate() replays them newest to oldest, carrying dh and dc back through at most truncationSteps steps.
+ * Everything is preallocated, so encoding and training do not allocate.
+ */
+public class RecurrentEncoder{
+
+    private LSTM lstm;
+
+    //The LSTM as a one layer network, so the agent's parameter copy/checkpoint code handles it like the dense update network
+    private ArrayList<Layer> network;
+
+    private int numActions;
+    private int inputSize;
+    private int stateSize;
+    private int truncationSteps;
+
+    //Ring of the last capacity steps: LSTM input, and the h and c it started from (one row each per step)
+    private int capacity;
+    private float[] ringInputs;
+    private float[] ringH;
+    private float[] ringC;
+    private int nextIndex;
+    private int size;
+
+    //The live (h, c), saved while backpropagate() replays older steps through the LSTM
+    private float[] savedH;
+    private float[] savedC;
+
+    //Gradient summed over the replayed steps
+    private float[] gradientSum;
+
+    public RecurrentEncoder(int stateSize, int numActions, int observationSize, int truncationSteps){
+        if(stateSize <= 0 || truncationSteps <= 0){
+            throw new IllegalArgumentException("stateSize and truncationSteps must be positive");
+        }
+
+        this.numActions = numActions;
+        this.inputSize = numActions + observationSize;
+        this.stateSize = stateSize;
+        this.truncationSteps = truncationSteps;
+
+        this.lstm = new LSTM(stateSize, this.inputSize);
+        this.network = new ArrayList<Layer>();
+        this.network.add(this.lstm);
+
+        //One extra step, so a gradient for the state before the latest still reaches truncationSteps back
+        this.capacity = truncationSteps + 1;
+        this.ringInputs = new float[this.capacity * this.inputSize];
+        this.ringH = new float[this.capacity * stateSize];
+        this.ringC = new float[this.capacity * stateSize];
+
+        this.savedH = new float[stateSize];
+        this.savedC = new float[stateSize];
+
+        this.gradientSum = new float[this.lstm.getNumParameters()];
+    }
+
+    /**
+     * Advances the encoder by one step and returns the new state (the LSTM output buffer, valid until the next encode() or backpropagate()).
+     * prevAction is the action taken before obs was observed, or -1 on the first step of an episode.
+     */
+    public float[] encode(int prevAction, float[] obs){
+        float[] input = this.lstm.inputVector;
+
+        //Same convention as the dense update network: -1 for the action on the first step
+        for(int i = 0; i < this.numActions; i++){
+            input[i] = prevAction < 0 ? -1 : 0;
+        }
+        if(prevAction >= 0){
+            input[prevAction] = 1;
+        }
+        System.arraycopy(obs, 0, input, this.numActions, obs.length);
+
+        int slot = this.nextIndex;
+        System.arraycopy(input, 0, this.ringInputs, slot * this.inputSize, this.inputSize);
+        System.arraycopy(this.lstm.currentHState, 0, this.ringH, slot * this.stateSize, this.stateSize);
+        System.arraycopy(this.lstm.currentCState, 0, this.ringC, slot * this.stateSize, this.stateSize);
+
+        this.nextIndex = (this.nextIndex + 1) % this.capacity;
+        this.size = Math.min(this.size + 1, this.capacity);
+
+        this.lstm.forwardPass();
+        this.lstm.updateState();
+
+        return this.lstm.outputVector;
+    }
+
+    /**
+     * Starts a new episode: zero state and no history to backpropagate into.
+     */
+    public void reset(){
+        this.lstm.resetState();
+        this.size = 0;
+        this.nextIndex = 0;
+    }
+
+    /**
+     * Adds scalar times the gradient of dObjdState . state to the LSTM parameters, where state is the one returned by the encode()
+     * call stepsAgo calls back (0 for the latest). The gradient flows through at most truncationSteps steps, never past reset().
+     */
+    public void backpropagate(float[] dObjdState, int stepsAgo, float scalar){
+        int steps = Math.min(this.truncationSteps, this.size - stepsAgo);
+        if(steps <= 0){
+            return;
+        }
+
+        LSTM l = this.lstm;
+        float[] grad = l.getGradient();
+
+        System.arraycopy(l.currentHState, 0, this.savedH, 0, this.stateSize);
+        System.arraycopy(l.currentCState, 0, this.savedC, 0, this.stateSize);
+
+        Arrays.fill(this.gradientSum, 0f);
+        Arrays.fill(l.dObjectivedNextC, 0f);
+        System.arraycopy(dObjdState, 0, l.dObjectivedY, 0, this.stateSize);
+
+        for(int k = 0; k < steps; k++){
+            int slot = Math.floorMod(this.nextIndex - 1 - stepsAgo - k, this.capacity);
+
+            //Recompute the step's activations from its stored input and starting state
+            System.arraycopy(this.ringInputs, slot * this.inputSize, l.inputVector, 0, this.inputSize);
+            System.arraycopy(this.ringH, slot * this.stateSize, l.currentHState, 0, this.stateSize);
+            System.arraycopy(this.ringC, slot * this.stateSize, l.currentCState, 0, this.stateSize);
+            l.forwardPass();
+
+            l.backwardPass();
+            Layer.KERNELS.axpy(1f, grad, 0, this.gradientSum, 0, grad.length);
+
+            //Carry dh and dc into the previous step
+            System.arraycopy(l.dObjectivedPrevH, 0, l.dObjectivedY, 0, this.stateSize);
+            System.arraycopy(l.dObjectivedPrevC, 0, l.dObjectivedNextC, 0, this.stateSize);
+        }
+
+        System.arraycopy(this.gradientSum, 0, grad, 0, grad.length);
+        l.applyGradient(scalar);
+
+        System.arraycopy(this.savedH, 0, l.currentHState, 0, this.stateSize);
+        System.arraycopy(this.savedC, 0, l.currentCState, 0, this.stateSize);
+        Arrays.fill(l.dObjectivedNextC, 0f);
+    }
+
+    public ArrayList<Layer> getNetwork(){
+        return this.network;
+    }
+
+    public int getTruncationSteps(){
+        return this.truncationSteps;
+    }
+}
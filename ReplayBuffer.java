@@ -0,0 +1,122 @@
+/**
+ * Fixed capacity ring buffer of (state, action, reward, discount, next state) transitions.
+ * Everything is stored in flat primitive arrays (one row of stateSize floats per transition), so adding and sampling never box or allocate.
+ */
+public class ReplayBuffer{
+
+    private int capacity;
+
+    private int stateSize;
+
+    private float[] states;
+    private float[] nextStates;
+
+    private int[] actions;
+    private float[] rewards;
+
+    //Discount applied to the next state's value; varies when decisions cover different amounts of time
+    private float[] discounts;
+
+    //Probability the behaviour policy gave the stored action, used for importance weighting when replaying
+    private float[] actionProbs;
+
+    private int size;
+
+    private int nextIndex;
+
+    public ReplayBuffer(int capacity, int stateSize){
+        if(capacity <= 0){
+            throw new IllegalArgumentException("capacity must be positive, got " + capacity);
+        }
+
+        this.capacity = capacity;
+        this.stateSize = stateSize;
+
+        this.states = new float[capacity * stateSize];
+        this.nextStates = new float[capacity * stateSize];
+
+        this.actions = new int[capacity];
+        this.rewards = new float[capacity];
+        this.discounts = new float[capacity];
+        this.actionProbs = new float[capacity];
+
+        this.size = 0;
+        this.nextIndex = 0;
+    }
+
+    /**
+     * Stores a transition, overwriting the oldest one once the buffer is full.
+     */
+    public void add(float[] state, int action, float actionProb, float reward, float discount, float[] nextState){
+        int offset = this.nextIndex * this.stateSize;
+
+        System.arraycopy(state, 0, this.states, offset, this.stateSize);
+        System.arraycopy(nextState, 0, this.nextStates, offset, this.stateSize);
+
+        this.actions[this.nextIndex] = action;
+        this.actionProbs[this.nextIndex] = actionProb;
+        this.rewards[this.nextIndex] = reward;
+        this.discounts[this.nextIndex] = discount;
+
+        this.nextIndex = (this.nextIndex + 1) % this.capacity;
+
+        if(this.size < this.capacity){
+            this.size++;
+        }
+    }
+
+    /**
+     * Returns the index of a uniformly sampled stored transition. The buffer must not be empty.
+     */
+    public int sampleIndex(){
+        return (int)(Math.random() * this.size);
+    }
+
+    public void getState(int index, float[] dest){
+        this.getState(index, dest, 0);
+    }
+
+    public void getNextState(int index, float[] dest){
+        this.getNextState(index, dest, 0);
+    }
+
+    /**
+     * Copies the state of transition index to dest starting at destOffset, e.g. into one row of a batch.
+     */
+    public void getState(int index, float[] dest, int destOffset){
+        System.arraycopy(this.states, index * this.stateSize, dest, destOffset, this.stateSize);
+    }
+
+    public void getNextState(int index, float[] dest, int destOffset){
+        System.arraycopy(this.nextStates, index * this.stateSize, dest, destOffset, this.stateSize);
+    }
+
+    public int getAction(int index){
+        return this.actions[index];
+    }
+
+    public float getActionProb(int index){
+        return this.actionProbs[index];
+    }
+
+    public float getReward(int index){
+        return this.rewards[index];
+    }
+
+    public float getDiscount(int index){
+        return this.discounts[index];
+    }
+
+    public int size(){
+        return this.size;
+    }
+
+    public int getCapacity(){
+        return this.capacity;
+    }
+
+    public void clear(){
+        this.size = 0;
+        this.nextIndex = 0;
+    }
+}
@@ -0,0 +1,33 @@
+/**
+ * Selects how GCAgent turns the interval between two decisions into a reward.
+ *
+ * With a Cadence, decisions cover intervals of different lengths and the next value is discounted per reference duration covered.
+ * STEP_TIME and THROUGHPUT are rates scaled by the covered reference durations, so a long wait earns what the same number of short
+ * decisions at that rate would. TOTAL_PAUSE and MAX_PAUSE are not normalized: TOTAL_PAUSE sums the pauses of the whole interval,
+ * which is already what the short decisions would add up to, while MAX_PAUSE takes the single worst pause of the interval, so a long
+ * wait is charged one maximum where short decisions would each be charged their own.
+ */
+public enum RewardMode{
+
+    /**
+     * Negative wall-clock seconds (System.nanoTime()) per unit of application work: per unit reported through GCAgent.reportWork()
+     * when the application reports work, otherwise per invoke() call. Fewer seconds per unit means the workload ran faster.
+     * Without a cadence and with one invoke() per unit of work this is the time between decisions.
+     */
+    STEP_TIME,
+
+    /**
+     * Negative total GC pause seconds reported by GC notifications during the interval.
+     */
+    TOTAL_PAUSE,
+
+    /**
+     * Negative longest single GC pause (seconds) reported during the interval, for services that care about tail latency.
+     */
+    MAX_PAUSE,
+
+    /**
+     * Work units reported through GCAgent.reportWork() per second of the interval.
+     */
+    THROUGHPUT
+}
@@ -0,0 +1,16 @@
+/**
+ * Plain stochastic gradient ascent: parameters += learningRate * gradScale * gradient. Has no state, and without clipping the agent
+ * fuses it into the backward pass.
+ */
+public class SGDOptimizer extends Optimizer{
+
+    @Override
+    public boolean isFusable(){
+        return this.getGradientClipping() == 0;
+    }
+
+    @Override
+    protected void update(int index, float[] params, float[] grad, float learningRate, float gradScale){
+        Layer.KERNELS.axpy(learningRate * gradScale, grad, 0, params, 0, params.length);
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * Plain loop implementation of Kernels, used when the vector API is not available.
+ */
+public class ScalarKernels extends Kernels{
+
+    @Override
+    public String getName(){
+        return "scalar";
+    }
+
+    @Override
+    public float dot(float[] a, int aOffset, float[] b, int bOffset, int n){
+        float sum = 0;
+
+        for(int i = 0; i < n; i++){
+            sum += a[aOffset + i] * b[bOffset + i];
+        }
+
+        return sum;
+    }
+
+    @Override
+    public void scale(float scale, float[] x, int xOffset, float[] dest, int destOffset, int n){
+        for(int i = 0; i < n; i++){
+            dest[destOffset + i] = scale * x[xOffset + i];
+        }
+    }
+
+    @Override
+    public void dot4(float[] a, int a0, int a1, int a2, int a3, float[] b, int bOffset, int n, float[] out, int outOffset){
+        float s0 = 0;
+        float s1 = 0;
+        float s2 = 0;
+        float s3 = 0;
+
+        for(int i = 0; i < n; i++){
+            float v = b[bOffset + i];
+
+            s0 += a[a0 + i] * v;
+            s1 += a[a1 + i] * v;
+            s2 += a[a2 + i] * v;
+            s3 += a[a3 + i] * v;
+        }
+
+        out[outOffset] = s0;
+        out[outOffset + 1] = s1;
+        out[outOffset + 2] = s2;
+        out[outOffset + 3] = s3;
+    }
+
+    @Override
+    public void axpy4(float c0, float c1, float c2, float c3, float[] x, int x0, int x1, int x2, int x3, float[] y, int yOffset, int n){
+        for(int i = 0; i < n; i++){
+            y[yOffset + i] += c0 * x[x0 + i] + c1 * x[x1 + i] + c2 * x[x2 + i] + c3 * x[x3 + i];
+        }
+    }
+
+    @Override
+    public void axpy(float a, float[] x, int xOffset, float[] y, int yOffset, int n){
+        for(int i = 0; i < n; i++){
+            y[yOffset + i] += a * x[xOffset + i];
+        }
+    }
+
+    @Override
+    public int dotInt8(byte[] a, int aOffset, int[] b, int bOffset, int n){
+        int sum = 0;
+
+        for(int i = 0; i < n; i++){
+            sum += a[aOffset + i] * b[bOffset + i];
+        }
+
+        return sum;
+    }
+
+    @Override
+    public float dotHalf(short[] a, int aOffset, float[] b, int bOffset, int n){
+        float[] table = HalfTable.VALUES;
+        float sum = 0;
+
+        for(int i = 0; i < n; i++){
+            sum += table[a[aOffset + i] & 0xFFFF] * b[bOffset + i];
+        }
+
+        return sum;
+    }
+
+    /**
+     * float value of every half float bit pattern (256 KB). A holder class, so the table is only built by the first dotHalf(),
+     * i.e. by agents that actually run FP16 layers.
+     */
+    private static class HalfTable{
+
+        private static final float[] VALUES = HalfTable.create();
+
+        private static float[] create(){
+            float[] table = new float[1 << 16];
+
+            for(int i = 0; i < table.length; i++){
+                table[i] = Kernels.halfToFloat((short)i);
+            }
+
+            return table;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Recording of what the agent saw and did: for every decision the observation, the chosen action, the probability the policy gave it,
+ * the reward that followed and whether the step started a new episode (fresh state). Stored in flat primitive arrays of fixed capacity.
+ */
+public class Trace{
+
+    private int capacity;
+
+    private int observationSize;
+
+    private float[] observations;
+    private int[] actions;
+    private float[] actionProbs;
+    private float[] rewards;
+    private boolean[] episodeStarts;
+
+    private int size;
+
+    //Whether the latest addStep() was recorded; the rewards that follow rejected steps belong to no recorded decision
+    private boolean lastStepRecorded;
+
+    public Trace(int capacity, int observationSize){
+        this.capacity = capacity;
+        this.observationSize = observationSize;
+
+        this.observations = new float[capacity * observationSize];
+        this.actions = new int[capacity];
+        this.actionProbs = new float[capacity];
+        this.rewards = new float[capacity];
+        this.episodeStarts = new boolean[capacity];
+
+        this.size = 0;
+    }
+
+    /**
+     * Records a decision. Returns false (and records nothing) once the trace is full.
+     */
+    public boolean addStep(float[] observation, int action, float actionProb, boolean episodeStart){
+        if(this.size == this.capacity){
+            this.lastStepRecorded = false;
+            return false;
+        }
+
+        System.arraycopy(observation, 0, this.observations, this.size * this.observationSize, this.observationSize);
+        this.actions[this.size] = action;
+        this.actionProbs[this.size] = actionProb;
+        this.episodeStarts[this.size] = episodeStart;
+        this.rewards[this.size] = 0;
+
+        this.size++;
+        this.lastStepRecorded = true;
+
+        return true;
+    }
+
+    /**
+     * Sets the reward that followed the most recently recorded decision. Ignored once a decision was rejected because the trace
+     * is full, so later rewards do not overwrite the last recorded one.
+     */
+    public void setLastReward(float reward){
+        if(this.lastStepRecorded){
+            this.rewards[this.size - 1] = reward;
+        }
+    }
+
+    public void getObservation(int step, float[] dest){
+        System.arraycopy(this.observations, step * this.observationSize, dest, 0, this.observationSize);
+    }
+
+    public int getAction(int step){
+        return this.actions[step];
+    }
+
+    public float getActionProb(int step){
+        return this.actionProbs[step];
+    }
+
+    public float getReward(int step){
+        return this.rewards[step];
+    }
+
+    public boolean isEpisodeStart(int step){
+        return this.episodeStarts[step];
+    }
+
+    public int size(){
+        return this.size;
+    }
+
+    public boolean isFull(){
+        return this.size == this.capacity;
+    }
+
+    public int getObservationSize(){
+        return this.observationSize;
+    }
+}
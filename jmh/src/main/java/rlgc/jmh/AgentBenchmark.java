@@ -0,0 +1,97 @@
+package rlgc.jmh;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * GCAgent.invoke() of a default agent (new GCAgent()) and its three phases on their own: observe (read the JVM figures), infer
+ * (update network and policy forward passes) and learn (one TD update of the value and policy networks).
+ * Explicit collections are disabled, so invoke() measures the agent and not the collections its policy asks for.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-XX:+DisableExplicitGC")
+public class AgentBenchmark{
+
+    private static final MethodHandle INVOKE = Internals.method("GCAgent", "invoke", void.class);
+    private static final MethodHandle SHUTDOWN = Internals.method("GCAgent", "shutdown", void.class);
+    private static final MethodHandle GET_OBSERVATION = Internals.method("GCAgent", "getObservation", void.class, float[].class);
+    private static final MethodHandle UPDATE_FUNCTION_PREDICT = Internals.method("GCAgent", "updateFunctionPredict", float[].class, float[].class, int.class, float[].class);
+    private static final MethodHandle POLICY_FUNCTION_PREDICT = Internals.method("GCAgent", "policyFunctionPredict", void.class, float[].class, float[].class);
+    private static final MethodHandle LEARN_FROM_TRANSITION = Internals.method("GCAgent", "learnFromTransition", float.class, float[].class, int.class, float.class, float.class, float[].class);
+    private static final MethodHandle GET_STATE_SIZE = Internals.method("GCAgent", "getStateSize", int.class);
+    private static final MethodHandle GET_NUM_ACTIONS = Internals.method("GCAgent", "getNumActions", int.class);
+
+    private static final int OBSERVATION_SIZE = (Integer)Internals.staticField("GCAgent", "OBSERVATION_SIZE", int.class);
+
+    private Object agent;
+
+    private float[] observation;
+    private float[] state;
+    private float[] nextState;
+    private float[] probs;
+
+    @Setup
+    public void setup() throws Throwable{
+        this.agent = Internals.constructor("GCAgent").invoke();
+
+        int stateSize = (int)GET_STATE_SIZE.invokeExact(this.agent);
+        int numActions = (int)GET_NUM_ACTIONS.invokeExact(this.agent);
+
+        Random random = new Random(42);
+        this.observation = new float[OBSERVATION_SIZE];
+        this.state = new float[stateSize];
+        this.nextState = new float[stateSize];
+        this.probs = new float[numActions];
+
+        for(int i = 0; i < stateSize; i++){
+            this.state[i] = (float)random.nextGaussian() * 0.5f;
+            this.nextState[i] = (float)random.nextGaussian() * 0.5f;
+        }
+
+        GET_OBSERVATION.invokeExact(this.agent, this.observation);
+    }
+
+    @TearDown
+    public void tearDown() throws Throwable{
+        SHUTDOWN.invokeExact(this.agent);
+    }
+
+    @Benchmark
+    public void invoke() throws Throwable{
+        INVOKE.invokeExact(this.agent);
+    }
+
+    @Benchmark
+    public void observe() throws Throwable{
+        GET_OBSERVATION.invokeExact(this.agent, this.observation);
+    }
+
+    @Benchmark
+    public void infer() throws Throwable{
+        float[] next = (float[])UPDATE_FUNCTION_PREDICT.invokeExact(this.agent, this.state, 0, this.observation);
+
+        POLICY_FUNCTION_PREDICT.invokeExact(this.agent, next, this.probs);
+    }
+
+    @Benchmark
+    public float learn() throws Throwable{
+        return (float)LEARN_FROM_TRANSITION.invokeExact(this.agent, this.state, 0, 0.5f, -0.01f, this.nextState);
+    }
+}
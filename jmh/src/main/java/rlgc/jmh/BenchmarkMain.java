@@ -0,0 +1,30 @@
+package rlgc.jmh;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of benchmarks.jar: the JMH command line, with the gc profiler always on, so every result comes with the bytes
+ * allocated per operation (gc.alloc.rate.norm). The agent's hot paths should report 0.
+ * The benchmarks run on the scalar kernels unless the forks get the vector module: -jvmArgsAppend "--add-modules=jdk.incubator.vector".
+ */
+public class BenchmarkMain{
+
+    public static void main(String[] args) throws Exception{
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+
+        if(commandLine.shouldHelp()){
+            commandLine.showHelp();
+            return;
+        }
+
+        if(commandLine.shouldList()){
+            new Runner(commandLine).list();
+            return;
+        }
+
+        new Runner(new OptionsBuilder().parent(commandLine).addProfiler(GCProfiler.class).build()).run();
+    }
+}
@@ -0,0 +1,103 @@
+package rlgc.jmh;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Method handles into the agent classes. They live in the default package, which JMH does not accept for benchmarks and which code
+ * in a named package cannot reference, so the benchmarks reach them (including package-private and private members) through
+ * handles whose default package types are erased to Object. Held in static final fields, the handles inline like direct calls.
+ */
+final class Internals{
+
+    private Internals(){
+    }
+
+    static Class<?> type(String name){
+        try{
+            return Class.forName(name);
+        } catch(ClassNotFoundException exception){
+            throw new IllegalStateException("The agent classes are not on the class path", exception);
+        }
+    }
+
+    static MethodHandle constructor(String className, Class<?>... parameterTypes){
+        Class<?> type = Internals.type(className);
+
+        try{
+            MethodHandle handle = Internals.lookup(type).findConstructor(type, MethodType.methodType(void.class, parameterTypes));
+
+            return handle.asType(Internals.erase(handle.type()));
+        } catch(ReflectiveOperationException exception){
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    /**
+     * Instance method handle taking the receiver (as Object) first.
+     */
+    static MethodHandle method(String className, String name, Class<?> returnType, Class<?>... parameterTypes){
+        Class<?> type = Internals.type(className);
+
+        try{
+            MethodHandle handle = Internals.lookup(type).findVirtual(type, name, MethodType.methodType(returnType, parameterTypes));
+
+            return handle.asType(Internals.erase(handle.type()));
+        } catch(ReflectiveOperationException exception){
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    static MethodHandle staticMethod(String className, String name, Class<?> returnType, Class<?>... parameterTypes){
+        Class<?> type = Internals.type(className);
+
+        try{
+            MethodHandle handle = Internals.lookup(type).findStatic(type, name, MethodType.methodType(returnType, parameterTypes));
+
+            return handle.asType(Internals.erase(handle.type()));
+        } catch(ReflectiveOperationException exception){
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    static MethodHandle getter(String className, String name, Class<?> fieldType){
+        Class<?> type = Internals.type(className);
+
+        try{
+            MethodHandle handle = Internals.lookup(type).findGetter(type, name, fieldType);
+
+            return handle.asType(Internals.erase(handle.type()));
+        } catch(ReflectiveOperationException exception){
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    static Object staticField(String className, String name, Class<?> fieldType){
+        Class<?> type = Internals.type(className);
+
+        try{
+            return Internals.lookup(type).findStaticGetter(type, name, fieldType).invoke();
+        } catch(Throwable exception){
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    private static MethodHandles.Lookup lookup(Class<?> type) throws IllegalAccessException{
+        return MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+    }
+
+    private static MethodType erase(MethodType type){
+        MethodType erased = type.changeReturnType(Internals.erase(type.returnType()));
+
+        for(int i = 0; i < type.parameterCount(); i++){
+            erased = erased.changeParameterType(i, Internals.erase(type.parameterType(i)));
+        }
+
+        return erased;
+    }
+
+    private static Class<?> erase(Class<?> type){
+        return !type.isPrimitive() && !type.isArray() && type.getPackageName().isEmpty() ? Object.class : type;
+    }
+}
@@ -0,0 +1,75 @@
+package rlgc.jmh;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Forward pass, backward pass (gradient stored) and fused backward pass with update of one layer of units x units,
+ * for each layer type and hidden size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LayerBenchmark{
+
+    private static final MethodHandle FORWARD_PASS = Internals.method("Layer", "forwardPass", void.class);
+    private static final MethodHandle BACKWARD_PASS = Internals.method("Layer", "backwardPass", void.class);
+    private static final MethodHandle BACKWARD_AND_APPLY = Internals.method("Layer", "backwardAndApply", void.class, float.class);
+    private static final MethodHandle INPUT_VECTOR = Internals.getter("Layer", "inputVector", float[].class);
+    private static final MethodHandle D_OBJECTIVE_D_Y = Internals.getter("Layer", "dObjectivedY", float[].class);
+
+    @Param({"DenseTanh", "DenseLinear", "LSTM"})
+    public String layerType;
+
+    @Param({"32", "128", "512"})
+    public int units;
+
+    private Object layer;
+
+    @Setup
+    public void setup() throws Throwable{
+        this.layer = Internals.constructor(this.layerType, int.class, int.class).invoke(this.units, this.units);
+
+        float[] input = (float[])INPUT_VECTOR.invokeExact(this.layer);
+        for(int i = 0; i < input.length; i++){
+            input[i] = 0.01f * (i % 100);
+        }
+
+        Arrays.fill((float[])D_OBJECTIVE_D_Y.invokeExact(this.layer), 0.1f);
+
+        //The backward passes read the activations of the last forward pass
+        FORWARD_PASS.invokeExact(this.layer);
+    }
+
+    @Benchmark
+    public void forward() throws Throwable{
+        FORWARD_PASS.invokeExact(this.layer);
+    }
+
+    @Benchmark
+    public void backward() throws Throwable{
+        BACKWARD_PASS.invokeExact(this.layer);
+    }
+
+    @Benchmark
+    public void backwardAndApply() throws Throwable{
+        //A tiny step, so the parameters barely drift over the run
+        BACKWARD_AND_APPLY.invokeExact(this.layer, -1e-6f);
+    }
+}
@@ -0,0 +1,48 @@
+package rlgc.jmh;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * MovingAverage.addSample(), which the agent calls twice per decision, over the window of a short and of the default update interval.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MovingAverageBenchmark{
+
+    private static final MethodHandle ADD_SAMPLE = Internals.method("MovingAverage", "addSample", void.class, float.class);
+
+    @Param({"100", "10000"})
+    public int samples;
+
+    private Object average;
+    private float sample;
+
+    @Setup
+    public void setup() throws Throwable{
+        this.average = Internals.constructor("MovingAverage", int.class).invoke(this.samples);
+    }
+
+    @Benchmark
+    public void addSample() throws Throwable{
+        this.sample = this.sample < 1f ? this.sample + 0.001f : 0f;
+
+        ADD_SAMPLE.invokeExact(this.average, this.sample);
+    }
+}
@@ -0,0 +1,73 @@
+package rlgc.jmh;
+
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The parameter utilities of the update network random search, on the update network of a default agent: snapshot
+ * (GCAgent.copyParams(network), allocating), copy into a preallocated snapshot, restore (setParameters) and random offset.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParamsBenchmark{
+
+    private static final MethodHandle GET_UPDATE_NETWORK = Internals.method("GCAgent", "getUpdateNetwork", ArrayList.class);
+    private static final MethodHandle SHUTDOWN = Internals.method("GCAgent", "shutdown", void.class);
+    private static final MethodHandle COPY_PARAMS = Internals.staticMethod("GCAgent", "copyParams", float[].class, ArrayList.class);
+    private static final MethodHandle COPY_PARAMS_INTO = Internals.staticMethod("GCAgent", "copyParams", void.class, ArrayList.class, float[].class);
+    private static final MethodHandle SET_PARAMETERS = Internals.staticMethod("GCAgent", "setParameters", void.class, ArrayList.class, float[].class);
+    private static final MethodHandle RANDOM_OFFSET_PARAMS = Internals.method("GCAgent", "randomOffsetParams", void.class, ArrayList.class, float.class);
+
+    private Object agent;
+    private ArrayList<?> network;
+    private float[] snapshot;
+
+    @Setup
+    public void setup() throws Throwable{
+        this.agent = Internals.constructor("GCAgent").invoke();
+        this.network = (ArrayList<?>)GET_UPDATE_NETWORK.invokeExact(this.agent);
+        this.snapshot = (float[])COPY_PARAMS.invokeExact(this.network);
+    }
+
+    @TearDown
+    public void tearDown() throws Throwable{
+        SHUTDOWN.invokeExact(this.agent);
+    }
+
+    @Benchmark
+    public float[] copyParams() throws Throwable{
+        return (float[])COPY_PARAMS.invokeExact(this.network);
+    }
+
+    @Benchmark
+    public void copyParamsInto() throws Throwable{
+        COPY_PARAMS_INTO.invokeExact(this.network, this.snapshot);
+    }
+
+    @Benchmark
+    public void setParameters() throws Throwable{
+        SET_PARAMETERS.invokeExact(this.network, this.snapshot);
+    }
+
+    @Benchmark
+    public void randomOffsetParams() throws Throwable{
+        RANDOM_OFFSET_PARAMS.invokeExact(this.agent, this.network, 0.001f);
+    }
+}
@@ -0,0 +1,214 @@
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Kernels on jdk.incubator.vector using the preferred species of the CPU, with scalar loops for the tails.
+ *
+ * This file lives outside the main source directory because compiling it needs the incubator module:
+ *     javac -d out *.java
+ *     javac --add-modules jdk.incubator.vector -cp out -d out vector/VectorKernels.java
+ * and running with it needs java --add-modules jdk.incubator.vector. Kernels falls back to ScalarKernels otherwise.
+ */
+public class VectorKernels extends Kernels{
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    //Same lane count as SPECIES, so bytes and half floats widen into one int or float vector
+    private static final VectorSpecies<Integer> INT_SPECIES = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Byte> BYTE_SPECIES = VectorSpecies.of(byte.class, VectorShape.forBitSize(VectorKernels.SPECIES.length() * 8));
+    private static final VectorSpecies<Short> SHORT_SPECIES = VectorSpecies.of(short.class, VectorShape.forBitSize(VectorKernels.SPECIES.length() * 16));
+
+    @Override
+    public String getName(){
+        return "vector" + VectorKernels.SPECIES.vectorBitSize();
+    }
+
+    @Override
+    public float dot(float[] a, int aOffset, float[] b, int bOffset, int n){
+        int step = VectorKernels.SPECIES.length();
+        int bound = VectorKernels.SPECIES.loopBound(n);
+
+        FloatVector acc = FloatVector.zero(VectorKernels.SPECIES);
+
+        int i = 0;
+        for(; i < bound; i += step){
+            FloatVector va = FloatVector.fromArray(VectorKernels.SPECIES, a, aOffset + i);
+            FloatVector vb = FloatVector.fromArray(VectorKernels.SPECIES, b, bOffset + i);
+
+            acc = va.fma(vb, acc);
+        }
+
+        float sum = acc.reduceLanes(VectorOperators.ADD);
+
+        for(; i < n; i++){
+            sum += a[aOffset + i] * b[bOffset + i];
+        }
+
+        return sum;
+    }
+
+    @Override
+    public void scale(float scale, float[] x, int xOffset, float[] dest, int destOffset, int n){
+        int step = VectorKernels.SPECIES.length();
+        int bound = VectorKernels.SPECIES.loopBound(n);
+
+        int i = 0;
+        for(; i < bound; i += step){
+            FloatVector.fromArray(VectorKernels.SPECIES, x, xOffset + i).mul(scale).intoArray(dest, destOffset + i);
+        }
+
+        for(; i < n; i++){
+            dest[destOffset + i] = scale * x[xOffset + i];
+        }
+    }
+
+    @Override
+    public void dot4(float[] a, int a0, int a1, int a2, int a3, float[] b, int bOffset, int n, float[] out, int outOffset){
+        int step = VectorKernels.SPECIES.length();
+        int bound = VectorKernels.SPECIES.loopBound(n);
+
+        FloatVector acc0 = FloatVector.zero(VectorKernels.SPECIES);
+        FloatVector acc1 = FloatVector.zero(VectorKernels.SPECIES);
+        FloatVector acc2 = FloatVector.zero(VectorKernels.SPECIES);
+        FloatVector acc3 = FloatVector.zero(VectorKernels.SPECIES);
+
+        int i = 0;
+        for(; i < bound; i += step){
+            FloatVector vb = FloatVector.fromArray(VectorKernels.SPECIES, b, bOffset + i);
+
+            acc0 = FloatVector.fromArray(VectorKernels.SPECIES, a, a0 + i).fma(vb, acc0);
+            acc1 = FloatVector.fromArray(VectorKernels.SPECIES, a, a1 + i).fma(vb, acc1);
+            acc2 = FloatVector.fromArray(VectorKernels.SPECIES, a, a2 + i).fma(vb, acc2);
+            acc3 = FloatVector.fromArray(VectorKernels.SPECIES, a, a3 + i).fma(vb, acc3);
+        }
+
+        float s0 = acc0.reduceLanes(VectorOperators.ADD);
+        float s1 = acc1.reduceLanes(VectorOperators.ADD);
+        float s2 = acc2.reduceLanes(VectorOperators.ADD);
+        float s3 = acc3.reduceLanes(VectorOperators.ADD);
+
+        for(; i < n; i++){
+            float v = b[bOffset + i];
+
+            s0 += a[a0 + i] * v;
+            s1 += a[a1 + i] * v;
+            s2 += a[a2 + i] * v;
+            s3 += a[a3 + i] * v;
+        }
+
+        out[outOffset] = s0;
+        out[outOffset + 1] = s1;
+        out[outOffset + 2] = s2;
+        out[outOffset + 3] = s3;
+    }
+
+    @Override
+    public void axpy4(float c0, float c1, float c2, float c3, float[] x, int x0, int x1, int x2, int x3, float[] y, int yOffset, int n){
+        int step = VectorKernels.SPECIES.length();
+        int bound = VectorKernels.SPECIES.loopBound(n);
+
+        FloatVector v0 = FloatVector.broadcast(VectorKernels.SPECIES, c0);
+        FloatVector v1 = FloatVector.broadcast(VectorKernels.SPECIES, c1);
+        FloatVector v2 = FloatVector.broadcast(VectorKernels.SPECIES, c2);
+        FloatVector v3 = FloatVector.broadcast(VectorKernels.SPECIES, c3);
+
+        int i = 0;
+        for(; i < bound; i += step){
+            FloatVector vy = FloatVector.fromArray(VectorKernels.SPECIES, y, yOffset + i);
+
+            vy = FloatVector.fromArray(VectorKernels.SPECIES, x, x0 + i).fma(v0, vy);
+            vy = FloatVector.fromArray(VectorKernels.SPECIES, x, x1 + i).fma(v1, vy);
+            vy = FloatVector.fromArray(VectorKernels.SPECIES, x, x2 + i).fma(v2, vy);
+            vy = FloatVector.fromArray(VectorKernels.SPECIES, x, x3 + i).fma(v3, vy);
+
+            vy.intoArray(y, yOffset + i);
+        }
+
+        for(; i < n; i++){
+            y[yOffset + i] += c0 * x[x0 + i] + c1 * x[x1 + i] + c2 * x[x2 + i] + c3 * x[x3 + i];
+        }
+    }
+
+    @Override
+    public void axpy(float a, float[] x, int xOffset, float[] y, int yOffset, int n){
+        int step = VectorKernels.SPECIES.length();
+        int bound = VectorKernels.SPECIES.loopBound(n);
+
+        FloatVector va = FloatVector.broadcast(VectorKernels.SPECIES, a);
+
+        int i = 0;
+        for(; i < bound; i += step){
+            FloatVector vx = FloatVector.fromArray(VectorKernels.SPECIES, x, xOffset + i);
+            FloatVector vy = FloatVector.fromArray(VectorKernels.SPECIES, y, yOffset + i);
+
+            vx.fma(va, vy).intoArray(y, yOffset + i);
+        }
+
+        for(; i < n; i++){
+            y[yOffset + i] += a * x[xOffset + i];
+        }
+    }
+
+    @Override
+    public int dotInt8(byte[] a, int aOffset, int[] b, int bOffset, int n){
+        int step = VectorKernels.INT_SPECIES.length();
+        int bound = VectorKernels.INT_SPECIES.loopBound(n);
+
+        IntVector acc = IntVector.zero(VectorKernels.INT_SPECIES);
+
+        int i = 0;
+        for(; i < bound; i += step){
+            IntVector va = (IntVector)ByteVector.fromArray(VectorKernels.BYTE_SPECIES, a, aOffset + i).convertShape(VectorOperators.B2I, VectorKernels.INT_SPECIES, 0);
+
+            acc = acc.add(va.mul(IntVector.fromArray(VectorKernels.INT_SPECIES, b, bOffset + i)));
+        }
+
+        int sum = acc.reduceLanes(VectorOperators.ADD);
+
+        for(; i < n; i++){
+            sum += a[aOffset + i] * b[bOffset + i];
+        }
+
+        return sum;
+    }
+
+    @Override
+    public float dotHalf(short[] a, int aOffset, float[] b, int bOffset, int n){
+        int step = VectorKernels.SPECIES.length();
+        int bound = VectorKernels.SPECIES.loopBound(n);
+
+        FloatVector acc = FloatVector.zero(VectorKernels.SPECIES);
+
+        int i = 0;
+        for(; i < bound; i += step){
+            IntVector h = (IntVector)ShortVector.fromArray(VectorKernels.SHORT_SPECIES, a, aOffset + i).convertShape(VectorOperators.S2I, VectorKernels.INT_SPECIES, 0);
+
+            //Decode with bit operations: normal numbers rebias the exponent, zero and subnormals are mantissa * 2^-24
+            IntVector sign = h.and(0x8000).lanewise(VectorOperators.LSHL, 16);
+            IntVector exponent = h.lanewise(VectorOperators.LSHR, 10).and(0x1F);
+            IntVector mantissa = h.and(0x3FF);
+
+            FloatVector normal = sign.or(exponent.add(127 - 15).lanewise(VectorOperators.LSHL, 23)).or(mantissa.lanewise(VectorOperators.LSHL, 13)).reinterpretAsFloats();
+            FloatVector small = ((FloatVector)mantissa.convert(VectorOperators.I2F, 0)).mul(5.9604645e-8f).reinterpretAsInts().or(sign).reinterpretAsFloats();
+
+            VectorMask<Float> isSmall = exponent.eq(0).cast(VectorKernels.SPECIES);
+            FloatVector va = normal.blend(small, isSmall);
+
+            acc = va.fma(FloatVector.fromArray(VectorKernels.SPECIES, b, bOffset + i), acc);
+        }
+
+        float sum = acc.reduceLanes(VectorOperators.ADD);
+
+        for(; i < n; i++){
+            sum += Kernels.halfToFloat(a[aOffset + i]) * b[bOffset + i];
+        }
+
+        return sum;
+    }
+}